@@ -105,6 +105,38 @@ object Settings {
         /** string */ const val Host = "Network.host"
         /** int */ const val BasePort = "Network.basePort"
         /** bool */ const val AnnounceBonjour = "Network.announceBonjour"
+        /** bool, adapt the number of chunk requests in flight and their size to the measured network performance */
+        const val AdaptiveFlowControl = "Network.adaptiveFlowControl"
+        /** int, number of data servers with their own port, socket and thread. Clients stripe requests over them */
+        const val DataConnections = "Network.dataConnections"
+        /** bool, losslessly encode slices when they are stored, clients that support it fetch the encoded bytes */
+        const val Compression = "Network.compression"
+        /** bool, servers stream all slices to subscribed clients, clients subscribe instead of requesting each slice */
+        const val PushSlices = "Network.pushSlices"
+        /** int, number of pushed slices a client lets the server send ahead */
+        const val PushCredits = "Network.pushCredits"
+        /** bool, share slice data with clients on the same host through a memory mapped file. Off by default */
+        const val SharedMemory = "Network.sharedMemory"
+        /** int, size of the memory mapped slice file */
+        const val SharedMemorySizeMb = "Network.sharedMemorySizeMb"
+        /** int, disk space for slices evicted from the server storage. 0 disables writing them to disk */
+        const val SpillSizeMb = "Network.spillSizeMb"
+        /** string, directory for the slices written to disk, each store uses a subfolder of its own. Default is a folder in the temp directory */
+        const val SpillDirectory = "Network.spillDirectory"
+        /** bool, clients fetch the announced slices of a stack in few large transfers instead of one by one */
+        const val BulkStacks = "Network.bulkStacks"
+        /** bool, servers keep 2x and 4x downsampled slices, clients show the coarsest until the full slice arrives */
+        const val ResolutionPyramid = "Network.resolutionPyramid"
+        /** bool, clients fetch live slices as difference to the previous one */
+        const val LiveDelta = "Network.liveDelta"
+        /** int, memory for slices received by clients, shared by all of a process. 0 disables the client cache */
+        const val ClientCacheSizeMb = "Network.clientCacheSizeMb"
+        /** int, disk space for slices evicted from the client cache. 0 disables writing them to disk */
+        const val ClientCacheDiskMb = "Network.clientCacheDiskMb"
+        /** string, directory for the client cache on disk, each cache uses a subfolder of its own. Default is a folder in the temp directory */
+        const val ClientCacheDirectory = "Network.clientCacheDirectory"
+        /** int, base port a relay serves its viewers on. Default is 200 above [BasePort], the microscope it relays */
+        const val RelayBasePort = "Network.relayBasePort"
     }
 
     object MMMicroscope {
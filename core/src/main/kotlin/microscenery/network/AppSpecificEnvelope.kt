@@ -0,0 +1,81 @@
+package microscenery.network
+
+import com.google.protobuf.ByteString
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.MessageLite
+import com.google.protobuf.UnsafeByteOperations
+import com.google.protobuf.WireFormat
+import org.withXR.network.v3.AppSpecific
+import org.withXR.network.v3.BaseServerSignal
+import java.nio.Buffer
+import java.nio.ByteBuffer
+
+/**
+ * Writes and reads the `AppSpecific` envelope of [BaseServerSignal] and [org.withXR.network.v3.BaseClientSignal]
+ * directly, both use the same field for it.
+ *
+ * The usual way serializes the app message into a [ByteString], builds the envelope messages around it and serializes
+ * everything again. [encode] writes the same bytes in one pass into one array of the exact size. [unwrap] finds the
+ * app message in a received message and wraps it without copying, it is only parsed once the consumer asks for it.
+ */
+internal object AppSpecificEnvelope {
+    private const val ENVELOPE_FIELD = BaseServerSignal.APPSPECIFIC_FIELD_NUMBER
+    private const val DATA_FIELD = AppSpecific.DATA_FIELD_NUMBER
+    private const val ENVELOPE_TAG = (ENVELOPE_FIELD shl 3) or WireFormat.WIRETYPE_LENGTH_DELIMITED
+    private const val DATA_TAG = (DATA_FIELD shl 3) or WireFormat.WIRETYPE_LENGTH_DELIMITED
+
+    /**
+     * @return the serialized signal carrying [message] as app specific data
+     */
+    fun encode(message: MessageLite): ByteArray {
+        val dataSize = message.serializedSize
+        val appSpecificSize = if (dataSize == 0) 0 else {
+            CodedOutputStream.computeTagSize(DATA_FIELD) + CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize
+        }
+        val size = CodedOutputStream.computeTagSize(ENVELOPE_FIELD) +
+                CodedOutputStream.computeUInt32SizeNoTag(appSpecificSize) + appSpecificSize
+
+        val bytes = ByteArray(size)
+        val out = CodedOutputStream.newInstance(bytes)
+        out.writeTag(ENVELOPE_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED)
+        out.writeUInt32NoTag(appSpecificSize)
+        // empty fields are not written, like protobuf does
+        if (dataSize > 0) {
+            out.writeTag(DATA_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED)
+            out.writeUInt32NoTag(dataSize)
+            message.writeTo(out)
+        }
+        out.checkNoSpaceLeft()
+        return bytes
+    }
+
+    /**
+     * Position and limit of [message] are not changed. The returned data shares memory with it, so [message] must not
+     * be reused.
+     *
+     * @return the app specific data of the signal in [message] or null if it is no app specific signal or not laid
+     * out like [encode] does it. Parse it the usual way then.
+     */
+    fun unwrap(message: ByteBuffer): ByteString? {
+        val start = message.position()
+        val input = CodedInputStream.newInstance(message.duplicate())
+        return try {
+            if (input.readTag() != ENVELOPE_TAG) return null
+            val appSpecificSize = input.readRawVarint32()
+            if (input.totalBytesRead + appSpecificSize != message.remaining()) return null
+            if (appSpecificSize == 0) return ByteString.EMPTY
+            if (input.readTag() != DATA_TAG) return null
+            val dataSize = input.readRawVarint32()
+            val dataStart = input.totalBytesRead
+            if (dataStart + dataSize != message.remaining()) return null
+
+            val data = message.duplicate()
+            // this cast has to be done to be compatible with JDK 8
+            (data as Buffer).limit(start + dataStart + dataSize).position(start + dataStart)
+            UnsafeByteOperations.unsafeWrap(data)
+        } catch (_: java.io.IOException) {
+            null
+        }
+    }
+}
@@ -2,54 +2,245 @@ package microscenery.network
 
 import fromScenery.lazyLogger
 import microscenery.Agent
+import microscenery.signals.BaseServerSignal
+import microscenery.signals.ImageMeta
 import org.withXR.network.v3.ReplyHeaderSliceChunk
 import org.withXR.network.v3.RequestSliceChunk
+import org.lwjgl.system.MemoryUtil
 import org.zeromq.SocketType
 import org.zeromq.ZContext
-import org.zeromq.ZFrame
 import org.zeromq.ZMQ
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
 import java.util.concurrent.ArrayBlockingQueue
-import java.util.concurrent.ConcurrentSkipListMap
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 const val PIPELINE = 10
 const val CHUNK_SIZE = 250000
 
+/** How often a chunk is requested before its slice is given up */
+const val MAX_ATTEMPTS = 5
+
 /**
  * Client that request and receives data from [BiggishDataServer].
  *
  * Takes request via [requestSlice] asynchronously.
- * Fully received slices will be put in [outputQueue]. Blocks if the queue is full.
+ * Fully received slices will be put in [outputQueue]. No new chunks are requested while the queue is full.
+ * Each requested slice gets one off-heap buffer. Chunks are copied to their offset in it as they arrive.
+ * The responsibility to free [SliceChunkCollector.data] is handed over with the collector via [outputQueue].
+ *
+ * Open slices take turns in getting chunks requested by priority, see [ChunkScheduler]. A slice superseded by a newer
+ * one of its latest wins group is cancelled, its requests in flight are forgotten and their credits reclaimed.
+ * [onSliceDropped] is called by the agent thread for every transfer that is dropped without data. The data buffer of
+ * the handed over collector is already freed then.
+ *
+ * Requests without a reply until [FlowControl.retransmissionTimeoutNanos] are considered lost. Their credit is
+ * reclaimed and they are requested again up to [MAX_ATTEMPTS] times before the whole slice is dropped. Replies that
+ * can't be used, e.g. empty ones, count as attempts the same way.
+ *
+ * Chunk requests are striped over all connected data ports, see [connectDataPorts].
  *
- * Uses a credit system to avoid overflowing the transmission medium.
+ * Whole stacks or z-ranges of them are fetched with [requestStack] as one transfer into one buffer, the slices back
+ * to back. Chunks never span two slices. Downsampled versions of slices are fetched with [requestSliceLevel], regions
+ * of them with [requestSliceRoi]. These transfers get negative ids, so they don't collide with slice ids.
+ *
+ * If [acceptCompression] is set and the server advertised [BaseServerSignal.ServerHello.CHUNK_EXTENSIONS], see
+ * [serverAcceptsExtensions], chunks are requested aligned to [CODEC_BLOCK_SIZE] together with a [ChunkRequestExtension]
+ * and encoded chunks are decoded straight into the slice buffer, see [SliceCodec]. Slices requested with `delta` are
+ * then fetched as difference to the last one fully received that way, see [FrameDelta]. A copy of that slice is kept
+ * as base until a newer one completes. Until then slices are requested plainly, which older servers understand too.
+ * Stack, level and region requests always need the extension.
+ *
+ * Uses a credit system to avoid overflowing the transmission medium. The number of credits and the chunk size are
+ * decided by [FlowControl] per connection, see [flowControlStatus] for what it settled on.
  */
-class BiggishDataClient(zContext: ZContext, port: Int, host: String = "localhost") : Agent() {
+class BiggishDataClient(
+    private val zContext: ZContext,
+    port: Int,
+    private val host: String = "localhost",
+    private val onSliceDropped: (SliceChunkCollector) -> Unit = {},
+    acceptCompression: Boolean = true
+) : Agent() {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
-    private val dealer: ZMQ.Socket = zContext.createSocket(SocketType.DEALER)
+    private val dealers = mutableListOf<ZMQ.Socket>()
+    private val connectedPorts = mutableListOf<Int>()
+    private val poller = zContext.createPoller(1)
+    private var nextDealer = 0
+
+    @Volatile
+    private var portsToConnect = listOf(port)
 
     val outputQueue = ArrayBlockingQueue<SliceChunkCollector>(10)
 
     private val requestQueue = ArrayBlockingQueue<SliceChunkCollector>(10)
-    private var openSlices = emptyList<SliceChunkCollector>()
+    private val scheduler = ChunkScheduler()
+    private val nextTransferId = AtomicInteger(-1)
 
-    //  Up to this many chunks in transit
-    private var credit = PIPELINE
+    private val flowControl = FlowControl()
 
-    init {
-        dealer.connect("tcp://$host:$port")
-        dealer.receiveTimeOut = 200
+    /**
+     * Set once the server advertised [BaseServerSignal.ServerHello.CHUNK_EXTENSIONS]. Applies to slices requested
+     * afterwards.
+     */
+    @Volatile
+    var serverAcceptsExtensions = false
+
+    private val requestExtension = if (acceptCompression) ChunkRequestExtension(SliceCodecs.allIds) else null
+    private val requestExtensionBytes = requestExtension?.toByteArray()
+
+    // encoded chunks are received here and decoded into the slice buffer. Raw plus one byte per block at most.
+    private val encodedChunk = requestExtension?.let {
+        MemoryUtil.memAlloc(MAX_CHUNK_SIZE + MAX_CHUNK_SIZE / CODEC_BLOCK_SIZE + 1)
+    }
+
+    // last slice fully received as delta and the number of deltas requested since the last keyframe
+    private var deltaBase: DeltaBase? = null
+    private var deltasSinceKeyframe = 0
+
+    // requests in transit by [chunkKey]. Up to [FlowControl.window] many per connection.
+    private val inFlight = LinkedHashMap<Long, InFlightRequest>()
+
+    // fully received slices waiting for space in [outputQueue]
+    private val completedSlices = ArrayDeque<SliceChunkCollector>()
 
-        logger.info("${BiggishDataClient::class.simpleName} connected to tcp://$host:$port")
+    /** Number of requests that got no reply in time */
+    @Volatile
+    var timeouts = 0L
+        private set
 
+    /** Number of chunks that were requested again */
+    @Volatile
+    var retries = 0L
+        private set
+
+    /** Number of slices dropped because a chunk could not be fetched */
+    @Volatile
+    var failedSlices = 0L
+        private set
+
+    /**
+     * Current window, chunk size and measured throughput.
+     */
+    val flowControlStatus: FlowControlStatus
+        get() = flowControl.status
+
+    init {
+        connectNewPorts()
         startAgent()
     }
 
-    fun requestSlice(id: Int, size: Int): Boolean {
-        val element = SliceChunkCollector(id, size)
+    /**
+     * Stripes future chunk requests over all [ports]. Already connected ports are kept.
+     */
+    fun connectDataPorts(ports: List<Int>) {
+        portsToConnect = ports
+    }
 
+    private fun connectNewPorts() {
+        portsToConnect.filter { it !in connectedPorts }.forEach { port ->
+            val dealer = zContext.createSocket(SocketType.DEALER)
+            dealer.connect("tcp://$host:$port")
+            dealer.receiveTimeOut = 200
+            poller.register(dealer, ZMQ.Poller.POLLIN)
+            dealers += dealer
+            connectedPorts += port
+            logger.info("${BiggishDataClient::class.simpleName} connected to tcp://$host:$port")
+        }
+    }
+
+    /**
+     * @param latestWinsGroup if set, a later request of the same group cancels this one
+     * @param delta fetch the slice as difference to the last slice requested with delta, see [FrameDelta]. Only
+     * with [acceptCompression].
+     */
+    fun requestSlice(
+        id: Int,
+        size: Int,
+        priority: SliceRequestPriority = SliceRequestPriority.NORMAL,
+        latestWinsGroup: String? = null,
+        delta: Boolean = false
+    ): Boolean = enqueue(SliceChunkCollector(id, size, priority, latestWinsGroup, delta = delta))
+
+    /**
+     * Requests [StackRange.sliceCount] slices of a stack starting at [StackRange.firstSlice] as one transfer. The
+     * collector handed out via [outputQueue] holds them back to back in [SliceChunkCollector.data].
+     *
+     * @return id of the transfer or null if it could not be queued or has more than one slice and is larger than
+     * [MAX_STACK_TRANSFER_SIZE]
+     */
+    fun requestStack(
+        stack: StackRange,
+        priority: SliceRequestPriority = SliceRequestPriority.BACKFILL
+    ): Int? {
+        if (stack.sliceCount <= 0 || stack.sliceSize <= 0) return null
+        if (stack.sliceCount > 1 && stack.sliceCount.toLong() * stack.sliceSize > MAX_STACK_TRANSFER_SIZE) {
+            logger.warn("Stack transfer of ${stack.sliceCount} slices of ${stack.sliceSize} bytes is too large.")
+            return null
+        }
+        val id = nextTransferId.getAndDecrement()
+        val collector = SliceChunkCollector(id, stack.sliceCount * stack.sliceSize, priority, stack = stack)
+        collector.requestExtensionBytes = ChunkRequestExtension(
+            requestExtension?.acceptedCodecs ?: 0, stack.stackId, stack.firstSlice, stack.sliceSize,
+            roi = stack.roi,
+            imageWidth = stack.imageMeta?.imageSize?.x ?: 0,
+            bytesPerPixel = stack.imageMeta?.numericType?.bytes ?: 0
+        ).toByteArray()
+        return if (enqueue(collector)) id else null
+    }
+
+    /**
+     * Requests a [SlicePyramid] level of a slice. The collector handed out via [outputQueue] refers to the slice by
+     * [SliceChunkCollector.sliceId].
+     *
+     * @param size of the level in bytes
+     * @return id of the transfer or null if it could not be queued
+     */
+    fun requestSliceLevel(
+        sliceId: Int,
+        level: Int,
+        size: Int,
+        priority: SliceRequestPriority = SliceRequestPriority.NORMAL,
+        latestWinsGroup: String? = null
+    ): Int? {
+        val id = nextTransferId.getAndDecrement()
+        val collector = SliceChunkCollector(id, size, priority, latestWinsGroup, level = level, sliceId = sliceId)
+        collector.requestExtensionBytes = ChunkRequestExtension(
+            requestExtension?.acceptedCodecs ?: 0, sliceSize = size, level = level, sliceId = sliceId
+        ).toByteArray()
+        return if (enqueue(collector)) id else null
+    }
+
+    /**
+     * Requests only a region of a slice. The collector handed out via [outputQueue] refers to the slice by
+     * [SliceChunkCollector.sliceId] and holds the gathered rows, see [SliceRoi.gather].
+     *
+     * @param imageMeta of the whole slice
+     * @return id of the transfer or null if it could not be queued
+     */
+    fun requestSliceRoi(
+        sliceId: Int,
+        roi: SliceRoi,
+        imageMeta: ImageMeta,
+        priority: SliceRequestPriority = SliceRequestPriority.NORMAL,
+        latestWinsGroup: String? = null
+    ): Int? {
+        val size = roi.bytes(imageMeta.numericType.bytes)
+        val id = nextTransferId.getAndDecrement()
+        val collector = SliceChunkCollector(id, size, priority, latestWinsGroup, sliceId = sliceId, roi = roi)
+        collector.requestExtensionBytes = ChunkRequestExtension(
+            requestExtension?.acceptedCodecs ?: 0, sliceSize = size, sliceId = sliceId, roi = roi,
+            imageWidth = imageMeta.imageSize.x, bytesPerPixel = imageMeta.numericType.bytes
+        ).toByteArray()
+        return if (enqueue(collector)) id else null
+    }
+
+    private fun enqueue(element: SliceChunkCollector): Boolean {
         if (!requestQueue.offer(element, 5000, TimeUnit.MILLISECONDS)) {
             logger.warn("Dropped ${SliceChunkCollector::class.simpleName} because of full queue.")
+            MemoryUtil.memFree(element.data)
             return false
         }
         return true
@@ -57,77 +248,355 @@ class BiggishDataClient(zContext: ZContext, port: Int, host: String = "localhost
 
     // taken from https://zguide.zeromq.org/docs/chapter7/#Transferring-Files
     override fun onLoop() {
-        if (outputQueue.remainingCapacity() == 0) {
-            Thread.sleep(200)
-            return
+        if (portsToConnect.any { it !in connectedPorts }) connectNewPorts()
+
+        while (completedSlices.isNotEmpty() && outputQueue.offer(completedSlices.first)) {
+            completedSlices.removeFirst()
         }
 
-        // when there is open requests and credits available request data
-        while (credit > 0) {
-            val openSlice = openSlices.firstOrNull { it.requestedChunks < it.numberOfChunks }
-            when {
-                openSlice != null -> {
-                    //get next slice requests params
-                    openSlice.requestedChunks += 1
-                    val reqBuilder = RequestSliceChunk.newBuilder()
-                    reqBuilder.sliceId = openSlice.id
-
-                    reqBuilder.chunkSize = if (openSlice.requestedChunks == openSlice.numberOfChunks) {
-                        openSlice.size.rem(CHUNK_SIZE)
-                    } else {
-                        CHUNK_SIZE
-                    }
-
-                    reqBuilder.offset = (openSlice.requestedChunks - 1) * CHUNK_SIZE
-                    dealer.send(reqBuilder.build().toByteArray())
-                    credit--
-                }
-
-                requestQueue.isNotEmpty() -> {
-                    openSlices = openSlices + requestQueue.poll()
-                }
-
-                else -> {
-                    break // maybe some data arrived
-                }
+        // new slices join the rotation right away
+        while (requestQueue.isNotEmpty()) {
+            val slice = requestQueue.poll()
+            if (slice.id in scheduler) {
+                logger.warn("Slice ${slice.id} is already being requested.")
+                MemoryUtil.memFree(slice.data)
+                continue
+            }
+            if (slice.requestExtensionBytes == null && requestExtensionBytes != null && serverAcceptsExtensions) {
+                slice.requestExtensionBytes = requestExtensionBytes
+                if (slice.delta) useDeltaBase(slice)
+            }
+            scheduler.add(slice)?.let {
+                logger.debug("Slice ${it.id} got superseded by ${slice.id}.")
+                dropSlice(it)
             }
         }
 
+        // when there is open requests and credits available request data. Stop while the consumer is behind.
+        while (completedSlices.isEmpty() && inFlight.size < flowControl.window * dealers.size) {
+            val request = scheduler.nextRequest(requestChunkSize(serverAcceptsExtensions)) ?: break
+            val reqBuilder = RequestSliceChunk.newBuilder()
+            reqBuilder.sliceId = request.slice.id
+            reqBuilder.offset = request.offset
+            reqBuilder.chunkSize = request.size
+
+            // stripe over all connections
+            nextDealer = (nextDealer + 1) % dealers.size
+            val dealer = dealers[nextDealer]
+            val extensionBytes = request.slice.requestExtensionBytes
+            if (extensionBytes == null) {
+                dealer.send(reqBuilder.build().toByteArray())
+            } else {
+                dealer.sendMore(reqBuilder.build().toByteArray())
+                dealer.send(extensionBytes)
+            }
+            val now = System.nanoTime()
+            inFlight[chunkKey(request.slice.id, request.offset)] =
+                InFlightRequest(request, now, now + flowControl.retransmissionTimeoutNanos)
+            flowControl.onRequestSent(now, inFlight.size / dealers.size)
+            if (request.attempt > 0) retries++
+        }
+
         // process replies
+        if (poller.poll(200) > 0) {
+            dealers.forEachIndexed { index, dealer ->
+                if (poller.pollin(index)) processReply(dealer)
+            }
+        }
+
+        expireRequests(System.nanoTime())
+    }
+
+    /**
+     * Lets [slice] be fetched as difference to the current base unless a keyframe is due.
+     */
+    private fun useDeltaBase(slice: SliceChunkCollector) {
+        val extension = requestExtension ?: return
+        val base = deltaBase
+        if (base == null || base.data.capacity() != slice.size || deltasSinceKeyframe >= FrameDelta.KEYFRAME_INTERVAL) {
+            deltasSinceKeyframe = 0
+            return
+        }
+        deltasSinceKeyframe++
+        base.users++
+        slice.deltaBase = base
+        slice.requestExtensionBytes = ChunkRequestExtension(extension.acceptedCodecs, baseSliceId = base.id).toByteArray()
+    }
+
+    /**
+     * Keeps a copy of the completed [slice] as base for the following deltas.
+     */
+    private fun updateDeltaBase(slice: SliceChunkCollector) {
+        releaseDeltaBase(slice)
+        if (slice.requestExtensionBytes == null) return
+        val copy = MemoryUtil.memAlloc(slice.size)
+        MemoryUtil.memCopy(slice.data, copy)
+        deltaBase?.let {
+            it.current = false
+            freeIfUnused(it)
+        }
+        deltaBase = DeltaBase(slice.sliceId, copy)
+    }
+
+    private fun releaseDeltaBase(slice: SliceChunkCollector) {
+        val base = slice.deltaBase ?: return
+        slice.deltaBase = null
+        base.users--
+        freeIfUnused(base)
+    }
+
+    private fun freeIfUnused(base: DeltaBase) {
+        if (!base.current && base.users == 0) MemoryUtil.memFree(base.data)
+    }
+
+    /**
+     * Encoded chunks have to consist of whole codec blocks.
+     */
+    private fun requestChunkSize(extensions: Boolean): Int {
+        if (requestExtension == null || !extensions) return flowControl.chunkSize
+        return (flowControl.chunkSize / CODEC_BLOCK_SIZE).coerceAtLeast(1) * CODEC_BLOCK_SIZE
+    }
+
+    /**
+     * Reclaims the credits of lost requests and schedules them again.
+     */
+    private fun expireRequests(now: Long) {
+        val expired = inFlight.values.filter { it.deadline < now }
+        if (expired.isEmpty()) return
+
+        flowControl.onLoss()
+        for (lost in expired) {
+            val request = lost.request
+            inFlight.remove(chunkKey(request.slice.id, request.offset))
+            timeouts++
+            retry(request, "got no reply")
+        }
+    }
+
+    /**
+     * Requests the chunk again or drops the slice if it failed [MAX_ATTEMPTS] times.
+     */
+    private fun retry(request: ChunkScheduler.ChunkRequest, failure: String) {
+        if (request.attempt + 1 >= MAX_ATTEMPTS) {
+            if (scheduler.remove(request.slice.id) != null) {
+                logger.warn("Giving up on slice ${request.slice.id}, chunk at ${request.offset} $failure.")
+                failedSlices++
+                dropSlice(request.slice)
+            }
+        } else {
+            scheduler.retransmit(request)
+        }
+    }
+
+    private fun processReply(dealer: ZMQ.Socket) {
         val reply = ReplyHeaderSliceChunk.parseFrom(dealer.recv() ?: return)
-        credit++
+        val sent = inFlight.remove(chunkKey(reply.sliceId, reply.offset))
 
-        val sliceCollector = openSlices.firstOrNull { it.id == reply.sliceId } ?: return
+        val sliceCollector = scheduler[reply.sliceId]
+        if (sliceCollector == null) {
+            // not requested (anymore)
+            discardRest(dealer)
+            return
+        }
+        val replyExtension = if (sliceCollector.requestExtensionBytes != null) {
+            if (dealer.hasReceiveMore()) ChunkReplyExtension.parseFrom(dealer.recv()) else null
+        } else null
 
         if (!reply.sliceAvailable) {
-            openSlices = openSlices.minus(sliceCollector)
+            scheduler.remove(sliceCollector.id)
+            dropSlice(sliceCollector)
+            return
+        }
+
+        if (sent == null) {
+            // e.g. reply to a request that already timed out and has been requested again
+            logger.debug("Got unexpected chunk of slice ${reply.sliceId} at ${reply.offset}.")
+            discardRest(dealer)
+            return
+        }
+
+        if (!dealer.hasReceiveMore()) {
+            logger.warn("Got header without data for slice ${reply.sliceId}.")
+            retry(sent.request, "got no data")
+            return
+        }
+        if (reply.chunkSize > sent.request.size) {
+            logger.warn("Chunk of slice ${reply.sliceId} at ${reply.offset} with size ${reply.chunkSize} is too large.")
+            dealer.recv()
+            retry(sent.request, "was too large")
+            return
+        }
+
+        val baseSliceId = replyExtension?.baseSliceId ?: ChunkRequestExtension.NO_SLICE
+        if (baseSliceId != ChunkRequestExtension.NO_SLICE && baseSliceId != sliceCollector.deltaBase?.id) {
+            logger.warn("Got chunk of slice ${reply.sliceId} as difference to unknown slice $baseSliceId.")
+            dealer.recv()
+            retry(sent.request, "referred to an unknown slice")
+            return
+        }
+
+        // let the chunk land directly at its place in the off-heap slice buffer
+        val target = sliceCollector.data.duplicate()
+        // this cast has to be done to be compatible with JDK 8
+        (target as Buffer).limit(reply.offset + reply.chunkSize).position(reply.offset)
+        val codec = replyExtension?.codec ?: RAW_CODEC
+        if (codec == RAW_CODEC) {
+            dealer.recvByteBuffer(target, 0)
+        } else if (!receiveEncoded(dealer, codec, target)) {
+            retry(sent.request, "could not be decoded")
             return
         }
+        sliceCollector.deltaBase?.let { base ->
+            if (baseSliceId == base.id) {
+                val data = sliceCollector.data
+                FrameDelta.xor(data, base.data, reply.offset, reply.chunkSize, data, reply.offset)
+            }
+        }
+        sliceCollector.receivedBytes += reply.chunkSize
+        if (reply.chunkSize < sent.request.size) {
+            // the server sent less than asked for, ask for the rest. Only replies without progress count as attempt.
+            val rest = sent.request.copy(offset = reply.offset + reply.chunkSize, size = sent.request.size - reply.chunkSize)
+            if (reply.chunkSize > 0) scheduler.retransmit(rest, failed = false) else retry(rest, "stayed empty")
+        }
 
-        val chunk = ZFrame.recvFrame(dealer)
-        sliceCollector.chunks[reply.offset] = chunk.data
+        val now = System.nanoTime()
+        // like TCP, don't measure the rtt of retransmissions since the reply could be for any of the attempts
+        val rtt = if (sent.request.attempt == 0) now - sent.sentAt else 0L
+        flowControl.onReplyReceived(now, reply.chunkSize, rtt, inFlight.size / dealers.size)
 
         if (sliceCollector.isFull()) {
-            openSlices = openSlices.minus(sliceCollector)
-            outputQueue.put(sliceCollector)
+            scheduler.remove(sliceCollector.id)
+            if (sliceCollector.delta) updateDeltaBase(sliceCollector)
+            completedSlices.addLast(sliceCollector)
         }
     }
 
-    override fun onClose() {
-        dealer.linger = 0
-        dealer.close()
+    private fun discardRest(dealer: ZMQ.Socket) {
+        while (dealer.hasReceiveMore()) dealer.recv()
     }
 
-    class SliceChunkCollector(val id: Int, val size: Int) {
-        val numberOfChunks = if (size < CHUNK_SIZE) 1 else {
-            size.floorDiv(CHUNK_SIZE) + if (size.rem(CHUNK_SIZE) > 0) 1 else 0
+    /**
+     * @return false if the chunk could not be decoded
+     */
+    private fun receiveEncoded(dealer: ZMQ.Socket, codecId: Int, target: ByteBuffer): Boolean {
+        val codec = SliceCodecs.byId(codecId)
+        if (codec == null) {
+            logger.warn("Got chunk encoded with unknown codec $codecId.")
+            dealer.recv()
+            return false
+        }
+        val encoded = encodedChunk ?: return false
+        // this cast has to be done to be compatible with JDK 8
+        (encoded as Buffer).clear()
+        return try {
+            dealer.recvByteBuffer(encoded, 0)
+            (encoded as Buffer).flip()
+            SliceCodecs.decode(codec, encoded, target)
+            true
+        } catch (e: RuntimeException) {
+            // malformed or oversized data, buffer over- and underflows
+            logger.warn("Could not decode chunk: ${e.message}")
+            false
+        }
+    }
+
+    override fun onClose() {
+        poller.close()
+        dealers.forEach {
+            it.linger = 0
+            it.close()
+        }
+        scheduler.openSlices.forEach {
+            releaseDeltaBase(it)
+            MemoryUtil.memFree(it.data)
+        }
+        deltaBase?.let {
+            it.current = false
+            freeIfUnused(it)
         }
-        var requestedChunks = 0
+        requestQueue.forEach { MemoryUtil.memFree(it.data) }
+        completedSlices.forEach { MemoryUtil.memFree(it.data) }
+        encodedChunk?.let { MemoryUtil.memFree(it) }
+    }
+
+    /**
+     * Forgets the requests in flight of an already removed [slice] and thereby reclaims their credits.
+     */
+    private fun dropSlice(slice: SliceChunkCollector) {
+        inFlight.values.removeAll { it.request.slice === slice }
+        releaseDeltaBase(slice)
+        MemoryUtil.memFree(slice.data)
+        onSliceDropped(slice)
+    }
+
+    private fun chunkKey(sliceId: Int, offset: Int) = sliceId.toLong().shl(32) or offset.toLong()
 
-        // key is offset
-        val chunks = ConcurrentSkipListMap<Int, ByteArray>()
+    private class InFlightRequest(val request: ChunkScheduler.ChunkRequest, val sentAt: Long, val deadline: Long)
 
-        fun isFull() = numberOfChunks == chunks.size
+    /**
+     * Owns [data], a copy of slice [id]. Freed once it is not [current] and no open slice uses it anymore.
+     */
+    internal class DeltaBase(val id: Int, val data: ByteBuffer) {
+        var users = 0
+        var current = true
     }
-}
 
+    /**
+     * Slices [firstSlice] until [firstSlice] + [sliceCount] of the stack [stackId], each [sliceSize] bytes large.
+     *
+     * @param roi if set, only this region of each slice. [sliceSize] then is the size of the region.
+     * @param imageMeta of the whole slices, needed with [roi]
+     */
+    data class StackRange(
+        val stackId: Int,
+        val firstSlice: Int,
+        val sliceCount: Int,
+        val sliceSize: Int,
+        val roi: SliceRoi? = null,
+        val imageMeta: ImageMeta? = null
+    )
+
+    /**
+     * @param stack set if this collects a stack transfer, see [requestStack]
+     * @param level [SlicePyramid] level of the slice, see [requestSliceLevel]
+     * @param sliceId slice the data belongs to, differs from [id] for level and region transfers
+     * @param roi region of the slice, see [requestSliceRoi]
+     * @param delta see [requestSlice]
+     */
+    class SliceChunkCollector(
+        val id: Int,
+        val size: Int,
+        val priority: SliceRequestPriority = SliceRequestPriority.NORMAL,
+        val latestWinsGroup: String? = null,
+        val stack: StackRange? = null,
+        val level: Int = 0,
+        val sliceId: Int = id,
+        val roi: SliceRoi? = null,
+        val delta: Boolean = false
+    ) {
+        var requestedBytes = 0
+        var receivedBytes = 0
+        internal val retransmits = ArrayDeque<ChunkScheduler.ChunkRequest>()
+        // sent with each request instead of the default extension of the client
+        internal var requestExtensionBytes: ByteArray? = null
+        // the slice this one is fetched as difference to
+        internal var deltaBase: DeltaBase? = null
+
+        /** Chunks don't span a multiple of this */
+        val segmentSize: Int
+            get() = stack?.sliceSize ?: size
+
+        /** Destination of all chunks */
+        val data: ByteBuffer = MemoryUtil.memAlloc(size)
+
+        fun isFull() = receivedBytes == size
+    }
+
+    companion object {
+        /**
+         * Larger stacks are fetched in several transfers, so memory and the wait for the first slice stay bounded.
+         * A single slice may exceed it.
+         */
+        const val MAX_STACK_TRANSFER_SIZE = 32 * 1024 * 1024
+    }
+}
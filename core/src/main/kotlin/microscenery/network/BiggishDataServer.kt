@@ -6,15 +6,30 @@ import microscenery.MicroscenerySettings
 import microscenery.Settings
 import org.withXR.network.v3.ReplyHeaderSliceChunk
 import org.withXR.network.v3.RequestSliceChunk
+import org.joml.Vector2i
+import org.lwjgl.system.MemoryUtil
 import org.zeromq.SocketType
 import org.zeromq.ZContext
 import org.zeromq.ZFrame
 import org.zeromq.ZMQ
 import java.nio.Buffer
+import java.nio.ByteBuffer
 import java.nio.ByteOrder
 
 /**
  * Dumb server that answers requests for parts of slices from the storage.
+ *
+ * If a request comes with a [ChunkRequestExtension] frame and the slice is stored encoded with a codec the client
+ * accepts, block aligned chunks are sent encoded. The [ChunkReplyExtension] frame tells the client which codec is used.
+ * The reply header always refers to the raw bytes.
+ *
+ * Requests whose extension names a stack address the slices of that stack laid out back to back. A chunk never spans
+ * two slices, it is cut at the end of its slice and the client asks for the rest.
+ *
+ * Requests for a [SlicePyramid] level are answered with the raw bytes of that level. Requests for a [SliceRoi] are
+ * answered with the rows of the region gathered from the slice or level.
+ *
+ * If the client names a base slice that is still stored, chunks are sent as encoded difference to it, see [FrameDelta].
  */
 class BiggishDataServer(val port: Int, host: String, private val storage: SliceStorage, zContext: ZContext) : Agent() {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
@@ -23,9 +38,24 @@ class BiggishDataServer(val port: Int, host: String, private val storage: SliceS
     // this is a workaround for a bug with the SD3 microscope from LMF MPI-CBG. Todo: unify with the other workaround on the client side
     private var sliceOffset = MicroscenerySettings.setIfUnset(Settings.Network.sliceOffset, 0)
 
+    // frame differences are computed here before they are encoded
+    private var deltaScratch: ByteBuffer? = null
+
+    // closes the leases of chunks once ZMQ has sent them
+    private val zeroCopy = ZeroCopySender()
+
+    // regions and differences are assembled in these before they are sent. Encoded blocks are never more than one byte
+    // larger than raw ones.
+    private val chunkPool = DirectBufferPool(MAX_CHUNK_SIZE + MAX_CHUNK_SIZE / CODEC_BLOCK_SIZE + 1)
+
+    /** Payload bytes handed to ZMQ so far */
+    @Volatile
+    var sentBytes = 0L
+        private set
+
     init {
         router = zContext.createSocket(SocketType.ROUTER)
-        router.hwm = PIPELINE * 2
+        router.hwm = MAX_PIPELINE * 2
         val adr = "tcp://${host}:${port}"
         router.bind(adr)
         router.receiveTimeOut = 500
@@ -45,45 +75,220 @@ class BiggishDataServer(val port: Int, host: String, private val storage: SliceS
     //  The server thread waits for a chunk request from a client,
     //  reads that chunk and sends it back to the client:
     override fun onLoop() {
+        zeroCopy.reclaim()
+
         //  First frame in each message is the sender identity
         val identity = ZFrame.recvFrame(router) ?: return
 
         //  Second frame is request
         val request = RequestSliceChunk.parseFrom(router.recv())
+        //  Optional third frame extends the request
+        val extension = if (router.hasReceiveMore()) ChunkRequestExtension.parseFrom(router.recv()) else null
         val replyBuilder = ReplyHeaderSliceChunk.newBuilder()
         replyBuilder.sliceId = request.sliceId
+        replyBuilder.offset = request.offset
 
-        val data = storage.getSlice(request.sliceId)?.duplicate()?.order(ByteOrder.LITTLE_ENDIAN)
-        if (data == null) {
-            logger.warn("Slice ${request.sliceId} was requested but was not found!")
-            // requested slice can't be found
-            val msg = replyBuilder.setSliceAvailable(false).build()
-            identity.sendAndDestroy(router, ZMQ.SNDMORE)
-            router.send(msg.toByteArray())
+        var offset = request.offset
+        val lease = when {
+            extension == null -> storage.acquireSlice(request.sliceId)
+            extension.isStackRequest -> {
+                offset = request.offset % extension.sliceSize
+                storage.acquireStackSlice(extension.stackId, extension.firstSlice + request.offset / extension.sliceSize)
+            }
+            extension.sliceId != ChunkRequestExtension.NO_SLICE -> storage.acquireSlice(extension.sliceId)
+            else -> storage.acquireSlice(request.sliceId)
+        }
+        if (lease == null) {
+            if (extension != null && extension.isStackRequest) {
+                logger.warn("Slice of stack ${extension.stackId} at ${request.offset} was requested but was not found!")
+            } else {
+                logger.warn("Slice ${request.sliceId} was requested but was not found!")
+            }
+            sendUnavailable(identity, replyBuilder)
             return
         }
+        var handedOver = false
+        try {
+            handedOver = reply(identity, request, offset, extension, replyBuilder, lease)
+        } finally {
+            if (!handedOver) lease.close()
+        }
+    }
+
+    /**
+     * @return true if the lease was handed over to [zeroCopy], which closes it once the chunk is sent
+     */
+    private fun reply(
+        identity: ZFrame,
+        request: RequestSliceChunk,
+        offset: Int,
+        extension: ChunkRequestExtension?,
+        replyBuilder: ReplyHeaderSliceChunk.Builder,
+        lease: SliceStorage.SliceLease
+    ): Boolean {
+        val source = if (extension == null || extension.level == 0) lease.data else lease.level(extension.level)
+        if (source == null) {
+            logger.debug("Level ${extension?.level} of slice ${request.sliceId} was requested but was not built.")
+            sendUnavailable(identity, replyBuilder)
+            return false
+        }
+        val roi = extension?.roi
+        if (extension != null && roi != null) {
+            sendRoiChunk(identity, request, offset, extension, roi, replyBuilder, source)
+            return false
+        }
+        if (extension != null && extension.baseSliceId != ChunkRequestExtension.NO_SLICE && extension.level == 0
+            && !extension.isStackRequest && sliceOffset == 0 && extension.accepts(DeltaBitPackCodec)
+            && sendDeltaChunk(identity, request, extension, replyBuilder, source)
+        ) return false
+
+        val encoded = if (extension == null || extension.level == 0) lease.encoded else null
+        sendChunk(identity, request, offset, extension, replyBuilder, source, encoded, lease)
+        return true
+    }
+
+    private fun sendUnavailable(identity: ZFrame, replyBuilder: ReplyHeaderSliceChunk.Builder) {
+        // requested slice can't be found
+        val msg = replyBuilder.setSliceAvailable(false).build()
+        identity.sendAndDestroy(router, ZMQ.SNDMORE)
+        router.send(msg.toByteArray())
+    }
+
+    private fun sendChunk(
+        identity: ZFrame,
+        request: RequestSliceChunk,
+        offset: Int,
+        extension: ChunkRequestExtension?,
+        replyBuilder: ReplyHeaderSliceChunk.Builder,
+        source: ByteBuffer,
+        sourceEncoded: EncodedSlice?,
+        lease: SliceStorage.SliceLease
+    ) {
+        val data = source.order(ByteOrder.LITTLE_ENDIAN)
         replyBuilder.sliceAvailable = true
+        // the workaround is for the raw camera images only
+        val workaroundOffset = if (extension == null || extension.level == 0) sliceOffset else 0
 
         // this cast has to be done to be compatible with JDK 8
-        (data as Buffer).position(data.position() + (sliceOffset + request.offset).coerceAtMost(data.remaining()))
-        val size = request.chunkSize.coerceAtMost(data.remaining()).coerceAtMost(CHUNK_SIZE)
-
-        //OPTIMIZATION POTENTIAL: introduce ring buffer or something to avoid creating new buffers constantly. Check out what ZFrame.destroy does.
-        val payload = ByteArray(size) //can't easily reuse memory since zmq needs to handle it
-        data.get(payload, 0, size)
-        val chunk = ZFrame(payload)
+        (data as Buffer).position(data.position() + (workaroundOffset + offset).coerceAtMost(data.remaining()))
+        val size = request.chunkSize.coerceAtMost(data.remaining()).coerceAtMost(MAX_CHUNK_SIZE)
+        (data as Buffer).limit(data.position() + size)
 
         replyBuilder.chunkSize = size
-        replyBuilder.offset = request.offset
+
+        // the workaround offset does not line up with the encoded blocks
+        val encoded = if (extension != null && sliceOffset == 0) {
+            sourceEncoded?.takeIf { extension.accepts(it.codec) }
+        } else null
+        val encodedData = encoded?.encodedRange(offset, size)
+        val payload = encodedData ?: data
 
         //  Send resulting chunk to client
         identity.sendAndDestroy(router, ZMQ.SNDMORE)
         router.sendMore(replyBuilder.build().toByteArray())
-        chunk.sendAndDestroy(router) // does not actively free the memory. Just removes the pointer so GC can do its thing.
+        if (extension != null) {
+            val codec = if (encoded != null && encodedData != null) encoded.codec.id else RAW_CODEC
+            router.sendMore(ChunkReplyExtension(codec).toByteArray())
+        }
+        sentBytes += payload.remaining()
+        // Zero copy: ZMQ keeps a view of the stored buffer and sends from it. No per chunk heap allocation.
+        // The lease keeps the slice pinned until ZMQ is done with it, even if the slice gets dropped in the meantime.
+        zeroCopy.send(router, payload, 0) { lease.close() }
+    }
+
+    /**
+     * Region requests are answered with a copy, since the rows have to be gathered. It is assembled in a buffer of
+     * [chunkPool].
+     */
+    private fun sendRoiChunk(
+        identity: ZFrame,
+        request: RequestSliceChunk,
+        offset: Int,
+        extension: ChunkRequestExtension,
+        roi: SliceRoi,
+        replyBuilder: ReplyHeaderSliceChunk.Builder,
+        source: ByteBuffer
+    ) {
+        val imageWidth = extension.imageWidth
+        val bytesPerPixel = extension.bytesPerPixel
+        // the workaround is for the raw camera images only, the image starts behind it
+        val workaroundOffset = if (extension.level == 0) sliceOffset else 0
+        val image = source.duplicate()
+        // this cast has to be done to be compatible with JDK 8
+        (image as Buffer).clear().position(workaroundOffset.coerceAtMost(image.capacity()))
+        val pixels = image.slice()
+        if (imageWidth <= 0 || bytesPerPixel <= 0
+            || !roi.fits(Vector2i(imageWidth, pixels.capacity() / (imageWidth * bytesPerPixel)))
+        ) {
+            logger.warn("Region $roi of slice ${request.sliceId} was requested but does not fit into the slice!")
+            sendUnavailable(identity, replyBuilder)
+            return
+        }
+
+        val size = request.chunkSize.coerceAtMost(roi.bytes(bytesPerPixel) - offset)
+            .coerceAtMost(MAX_CHUNK_SIZE).coerceAtLeast(0)
+        val chunk = chunkPool.acquire()
+        roi.gather(pixels, imageWidth, bytesPerPixel, offset, size, chunk)
+        // this cast has to be done to be compatible with JDK 8
+        (chunk as Buffer).flip()
+        replyBuilder.sliceAvailable = true
+        replyBuilder.chunkSize = size
+
+        identity.sendAndDestroy(router, ZMQ.SNDMORE)
+        router.sendMore(replyBuilder.build().toByteArray())
+        router.sendMore(ChunkReplyExtension(RAW_CODEC).toByteArray())
+        sentBytes += size
+        zeroCopy.send(router, chunk, 0) { chunkPool.release(chunk) }
+    }
+
+    /**
+     * Sends the chunk as difference to the base slice of the client, see [FrameDelta].
+     *
+     * @return false if the base is not stored (anymore) or does not match. Nothing has been sent then.
+     */
+    private fun sendDeltaChunk(
+        identity: ZFrame,
+        request: RequestSliceChunk,
+        extension: ChunkRequestExtension,
+        replyBuilder: ReplyHeaderSliceChunk.Builder,
+        source: ByteBuffer
+    ): Boolean {
+        val baseLease = storage.acquireSlice(extension.baseSliceId) ?: return false
+        baseLease.use { base ->
+            if (base.data.capacity() != source.capacity() || request.offset % CODEC_BLOCK_SIZE != 0) return false
+
+            val size = request.chunkSize.coerceAtMost(source.capacity() - request.offset)
+                .coerceAtMost(MAX_CHUNK_SIZE).coerceAtLeast(0)
+            val delta = deltaScratch ?: MemoryUtil.memAlloc(MAX_CHUNK_SIZE).also { deltaScratch = it }
+            FrameDelta.xor(source, base.data, request.offset, size, delta, 0)
+
+            val blocks = (size + CODEC_BLOCK_SIZE - 1) / CODEC_BLOCK_SIZE
+            val encoded = chunkPool.acquire()
+            for (block in 0 until blocks) {
+                // this cast has to be done to be compatible with JDK 8
+                (delta as Buffer).limit(minOf(size, (block + 1) * CODEC_BLOCK_SIZE)).position(block * CODEC_BLOCK_SIZE)
+                DeltaBitPackCodec.encodeBlock(delta, encoded)
+            }
+            (encoded as Buffer).flip()
+
+            replyBuilder.sliceAvailable = true
+            replyBuilder.chunkSize = size
+            identity.sendAndDestroy(router, ZMQ.SNDMORE)
+            router.sendMore(replyBuilder.build().toByteArray())
+            router.sendMore(ChunkReplyExtension(DeltaBitPackCodec.id, extension.baseSliceId).toByteArray())
+            sentBytes += encoded.remaining()
+            // given back to the pool once ZMQ is done with it
+            zeroCopy.send(router, encoded, 0) { chunkPool.release(encoded) }
+            return true
+        }
     }
 
     override fun onClose() {
+        deltaScratch?.let { MemoryUtil.memFree(it) }
         router.linger = 0
         router.close()
+        // chunks ZMQ might still hold keep their slices pinned, which is better than freeing them under its feet
+        zeroCopy.reclaim()
+        chunkPool.close()
     }
 }
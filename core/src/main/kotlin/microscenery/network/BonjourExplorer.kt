@@ -1,5 +1,6 @@
 package microscenery.network
 
+import org.slf4j.LoggerFactory
 import java.io.IOException
 import java.net.InetAddress
 import java.net.UnknownHostException
@@ -7,6 +8,56 @@ import javax.jmdns.JmDNS
 import javax.jmdns.ServiceEvent
 import javax.jmdns.ServiceListener
 
+/**
+ * Finds services announced by [BonjourService]s of [type] whose text contains [text].
+ *
+ * [onFound] and [onLost] are called with name, host and port of a service by the threads of JmDNS.
+ */
+class BonjourExplorer(
+    val type: String = "_xrsidecar._tcp.local.",
+    val text: String = "",
+    private val onFound: (name: String, host: String, port: Int) -> Unit,
+    private val onLost: (name: String, host: String, port: Int) -> Unit = { _, _, _ -> }
+) : AutoCloseable {
+    private val jmDNS: JmDNS = JmDNS.create(InetAddress.getLocalHost())
+    private val logger = LoggerFactory.getLogger(BonjourExplorer::class.java)
+
+    // resolved services by name, to tell where a lost one was
+    private val found = HashMap<String, Pair<String, Int>>()
+
+    private val listener = object : ServiceListener {
+        override fun serviceAdded(event: ServiceEvent) {
+            // the address is only known once resolved
+            jmDNS.requestServiceInfo(event.type, event.name)
+        }
+
+        override fun serviceRemoved(event: ServiceEvent) {
+            val (host, port) = synchronized(found) { found.remove(event.name) } ?: return
+            logger.info("Lost ${event.name} at $host:$port")
+            onLost(event.name, host, port)
+        }
+
+        override fun serviceResolved(event: ServiceEvent) {
+            val info = event.info
+            if (!info.niceTextString.contains(text)) return
+            val host = info.inetAddresses.firstOrNull()?.hostAddress ?: return
+            val address = host to info.port
+            if (synchronized(found) { found.put(event.name, address) } == address) return
+            logger.info("Found ${event.name} at $host:${info.port}")
+            onFound(event.name, host, info.port)
+        }
+    }
+
+    init {
+        jmDNS.addServiceListener(type, listener)
+    }
+
+    override fun close() {
+        jmDNS.removeServiceListener(type, listener)
+        jmDNS.close()
+    }
+}
+
 
 private class SampleListener : ServiceListener {
     override fun serviceAdded(event: ServiceEvent) {
@@ -0,0 +1,110 @@
+package microscenery.network
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Optional frame following a [org.withXR.network.v3.RequestSliceChunk]. Extends the chunk protocol without changing
+ * the protobuf messages. [BiggishDataServer] answers requests that have one with a [ChunkReplyExtension] frame between
+ * the reply header and the data.
+ *
+ * Little endian. New fields are appended. Fields missing in a frame are read as their default.
+ *
+ * @param acceptedCodecs bit mask of the [SliceCodec.id]s the client can decode
+ * @param stackId if set, the request refers to the slices of this stack starting at [firstSlice] laid out back to
+ * back instead of a single slice. The slice id of the request is then only echoed, see [SliceStorage.acquireStackSlice].
+ * @param firstSlice index within the stack of the slice at offset 0
+ * @param sliceSize size of each slice of the stack in bytes
+ * @param level [SlicePyramid] level to send instead of the full resolution. [sliceSize] then is the size of the level.
+ * @param sliceId if set, the slice the request refers to. The slice id of the request is then only echoed.
+ * @param roi if set, only this region is sent, gathered row by row. Offsets refer to the gathered bytes and
+ * [sliceSize] is the size of the region.
+ * @param imageWidth width of the slices in pixel, needed with [roi]
+ * @param bytesPerPixel needed with [roi]
+ * @param baseSliceId if set, the client holds this slice and accepts chunks as difference to it, see [FrameDelta]
+ */
+internal class ChunkRequestExtension(
+    val acceptedCodecs: Int = 0,
+    val stackId: Int = NO_STACK,
+    val firstSlice: Int = 0,
+    val sliceSize: Int = 0,
+    val level: Int = 0,
+    val sliceId: Int = NO_SLICE,
+    val roi: SliceRoi? = null,
+    val imageWidth: Int = 0,
+    val bytesPerPixel: Int = 0,
+    val baseSliceId: Int = NO_SLICE
+) {
+
+    fun accepts(codec: SliceCodec) = (acceptedCodecs and (1 shl codec.id)) != 0
+
+    val isStackRequest
+        get() = stackId != NO_STACK && sliceSize > 0
+
+    fun toByteArray(): ByteArray = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(acceptedCodecs)
+        .putInt(stackId)
+        .putInt(firstSlice)
+        .putInt(sliceSize)
+        .putInt(level)
+        .putInt(sliceId)
+        .putInt(roi?.x ?: 0)
+        .putInt(roi?.y ?: 0)
+        .putInt(roi?.width ?: 0)
+        .putInt(roi?.height ?: 0)
+        .putInt(roi?.stride ?: 0)
+        .putInt(imageWidth)
+        .putInt(bytesPerPixel)
+        .putInt(baseSliceId)
+        .array()
+
+    companion object {
+        fun parseFrom(bytes: ByteArray): ChunkRequestExtension {
+            val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            return ChunkRequestExtension(
+                acceptedCodecs = if (buffer.remaining() >= 4) buffer.int else 0,
+                stackId = if (buffer.remaining() >= 4) buffer.int else NO_STACK,
+                firstSlice = if (buffer.remaining() >= 4) buffer.int else 0,
+                sliceSize = if (buffer.remaining() >= 4) buffer.int else 0,
+                level = if (buffer.remaining() >= 4) buffer.int else 0,
+                sliceId = if (buffer.remaining() >= 4) buffer.int else NO_SLICE,
+                roi = if (buffer.remaining() >= 20) {
+                    SliceRoi(buffer.int, buffer.int, buffer.int, buffer.int, buffer.int).takeIf { it.width > 0 }
+                } else null,
+                imageWidth = if (buffer.remaining() >= 4) buffer.int else 0,
+                bytesPerPixel = if (buffer.remaining() >= 4) buffer.int else 0,
+                baseSliceId = if (buffer.remaining() >= 4) buffer.int else NO_SLICE
+            )
+        }
+
+        const val NO_STACK = -1
+        const val NO_SLICE = -1
+    }
+}
+
+/**
+ * Frame between reply header and data if the request had a [ChunkRequestExtension]. Same rules apply.
+ *
+ * @param codec [SliceCodec.id] the data frame is encoded with or [RAW_CODEC]
+ * @param baseSliceId if set, the decoded data is the difference to this slice, see [FrameDelta]
+ */
+internal class ChunkReplyExtension(
+    val codec: Int = RAW_CODEC,
+    val baseSliceId: Int = ChunkRequestExtension.NO_SLICE
+) {
+
+    fun toByteArray(): ByteArray = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN)
+        .put(codec.toByte())
+        .putInt(baseSliceId)
+        .array()
+
+    companion object {
+        fun parseFrom(bytes: ByteArray): ChunkReplyExtension {
+            val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            return ChunkReplyExtension(
+                codec = if (buffer.remaining() >= 1) buffer.get().toInt() and 0xFF else RAW_CODEC,
+                baseSliceId = if (buffer.remaining() >= 4) buffer.int else ChunkRequestExtension.NO_SLICE
+            )
+        }
+    }
+}
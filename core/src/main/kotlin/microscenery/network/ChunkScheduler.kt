@@ -0,0 +1,104 @@
+package microscenery.network
+
+import microscenery.network.BiggishDataClient.SliceChunkCollector
+import java.util.ArrayDeque
+
+/**
+ * Slices of a higher priority (lower ordinal) are requested before any slice of a lower one.
+ */
+enum class SliceRequestPriority {
+    LIVE, NORMAL, BACKFILL
+}
+
+/**
+ * Keeps track of the open slices of [BiggishDataClient] and decides which one gets the next chunk request.
+ *
+ * Slices of the highest [SliceRequestPriority] with bytes left take turns round-robin, one chunk per turn.
+ * Therefore, a small slice doesn't wait until a large slice that was requested before it is fully requested.
+ * Chunks end at the [SliceChunkCollector.segmentSize] boundaries, e.g. the slice borders of a stack transfer.
+ *
+ * Of the slices with the same [SliceChunkCollector.latestWinsGroup] only the newest one is kept open.
+ *
+ * Not thread safe. Only to be used by the agent thread of [BiggishDataClient].
+ */
+internal class ChunkScheduler {
+    private val open = HashMap<Int, SliceChunkCollector>()
+
+    // per priority, slices that still have bytes to request. Removed slices are skipped once it is their turn.
+    private val turns = Array(SliceRequestPriority.values().size) { ArrayDeque<SliceChunkCollector>() }
+
+    private val newestOfGroup = HashMap<String, SliceChunkCollector>()
+
+    val openSlices: Collection<SliceChunkCollector>
+        get() = open.values
+
+    operator fun get(id: Int): SliceChunkCollector? = open[id]
+
+    operator fun contains(id: Int) = open.containsKey(id)
+
+    /**
+     * @return the slice that got superseded and removed because of the latest wins group of [slice]
+     */
+    fun add(slice: SliceChunkCollector): SliceChunkCollector? {
+        open[slice.id] = slice
+        turns[slice.priority.ordinal].addLast(slice)
+
+        val group = slice.latestWinsGroup ?: return null
+        val superseded = newestOfGroup.put(group, slice) ?: return null
+        return remove(superseded.id)
+    }
+
+    fun remove(id: Int): SliceChunkCollector? {
+        val slice = open.remove(id) ?: return null
+        slice.latestWinsGroup?.let { newestOfGroup.remove(it, slice) }
+        return slice
+    }
+
+    /**
+     * Plans the next chunk request and marks it as requested. Retransmissions of a slice go before its new chunks.
+     *
+     * @return null if all open slices are fully requested
+     */
+    fun nextRequest(chunkSize: Int): ChunkRequest? {
+        for (queue in turns) {
+            while (queue.isNotEmpty()) {
+                val slice = queue.pollFirst()
+                if (open[slice.id] !== slice) continue
+
+                val request = slice.retransmits.pollFirst()
+                    ?: if (slice.requestedBytes < slice.size) {
+                        val size = chunkSize.coerceAtMost(slice.size - slice.requestedBytes)
+                            .coerceAtMost(slice.segmentSize - slice.requestedBytes % slice.segmentSize)
+                        ChunkRequest(slice, slice.requestedBytes, size).also { slice.requestedBytes += size }
+                    } else {
+                        null
+                    }
+
+                if (slice.hasUnrequestedBytes()) queue.addLast(slice)
+                if (request != null) return request
+            }
+        }
+        return null
+    }
+
+    /**
+     * Queues [request] to be requested again.
+     *
+     * @param failed counts as further attempt, false e.g. for the rest of a chunk the server sent partly
+     */
+    fun retransmit(request: ChunkRequest, failed: Boolean = true) {
+        val slice = request.slice
+        if (open[slice.id] !== slice) return
+
+        // the slice is only in the turn queue if it has bytes left to request
+        if (!slice.hasUnrequestedBytes()) turns[slice.priority.ordinal].addLast(slice)
+        slice.retransmits.addLast(if (failed) request.copy(attempt = request.attempt + 1) else request)
+    }
+
+    private fun SliceChunkCollector.hasUnrequestedBytes() = requestedBytes < size || retransmits.isNotEmpty()
+
+    /**
+     * @param attempt how often this chunk has been requested before
+     */
+    data class ChunkRequest(val slice: SliceChunkCollector, val offset: Int, val size: Int, val attempt: Int = 0)
+}
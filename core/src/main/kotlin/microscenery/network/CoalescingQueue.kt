@@ -0,0 +1,41 @@
+package microscenery.network
+
+import java.util.ArrayDeque
+
+/**
+ * FIFO in which elements with a coalesce key are latest wins. Adding one removes a queued element with the same key
+ * and appends the new one, so elements still come out in the order they happened. Elements without a key are all
+ * kept.
+ *
+ * Not thread safe.
+ */
+internal class CoalescingQueue<T : Any>(private val coalesceKey: (T) -> Any?) {
+    private val elements = ArrayDeque<T>()
+
+    val size: Int
+        get() = elements.size
+
+    fun isEmpty() = elements.isEmpty()
+
+    fun isNotEmpty() = elements.isNotEmpty()
+
+    /**
+     * @return true if a queued element has been replaced
+     */
+    fun add(element: T): Boolean {
+        val key = coalesceKey(element)
+        val replaced = key != null && elements.removeIf { coalesceKey(it) == key }
+        elements.addLast(element)
+        return replaced
+    }
+
+    /**
+     * @return the oldest element or null if empty
+     */
+    fun poll(): T? = elements.pollFirst()
+
+    /**
+     * @return the oldest element without removing it or null if empty
+     */
+    fun peek(): T? = elements.peekFirst()
+}
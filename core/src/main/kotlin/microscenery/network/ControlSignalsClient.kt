@@ -1,7 +1,7 @@
 package microscenery.network
 
+import com.google.protobuf.MessageLite
 import fromScenery.lazyLogger
-import kotlinx.event.event
 import microscenery.Agent
 import microscenery.signals.BaseClientSignal
 import microscenery.signals.BaseServerSignal
@@ -10,93 +10,161 @@ import org.zeromq.SocketType
 import org.zeromq.ZContext
 import org.zeromq.ZMQ
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executor
 import java.util.concurrent.TimeUnit
 
 /**
  * A Client to send control [BaseClientSignal]s to [ControlSignalsServer] and receive [BaseServerSignal]s.
  *
- * Receive [BaseServerSignal]s via subscribing with a listener by [addListener].
- * Don't add too elaborate listeners. They get executed by the network thread.
+ * Receive [BaseServerSignal]s via subscribing with a listener by [addListener]. Listeners are executed off the network
+ * thread, each gets the signals in order and one at a time, see [SignalDispatcher]. The network thread only moves bytes.
  *
  * Send via [sendSignal].
+ *
+ * The network thread waits on the socket and is woken up for outgoing signals, see [WakeUpSocket].
+ *
+ * Once the server advertised [BaseServerSignal.ServerHello.SIGNAL_BATCHES], signals that pile up are sent as one
+ * message, see [SignalBatch], and an empty message is sent as heartbeat if nothing has been sent for
+ * [ControlSignalsServer.HEARTBEAT_INTERVAL_MS], so the server keeps this client. The first heartbeat is sent right away
+ * and tells the server that batches are understood here too. Older servers get single signals and no heartbeats.
+ * Listeners get received signals one by one.
+ *
+ * @param dispatchExecutor runs the listeners instead of an own pool, e.g. one shared by all connections of a process.
+ * See [RemoteMicroscopeAggregator].
  */
 class ControlSignalsClient(
     val zContext: ZContext,
     val port: Int,
     val host: String,
-    listeners: List<(BaseServerSignal) -> Unit> = emptyList()
+    listeners: List<(BaseServerSignal) -> Unit> = emptyList(),
+    dispatchExecutor: Executor? = null
 ) : Agent() {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
     private val socket: ZMQ.Socket
+    private val wakeUp = WakeUpSocket(zContext)
+    private val poller = zContext.createPoller(2)
+
+    // serialized signals
+    private val signalsOut = ArrayBlockingQueue<ByteArray>(1000)
+    private val dispatcher = SignalDispatcher<BaseServerSignal>(
+        ControlSignalsClient::class.simpleName ?: "", sharedExecutor = dispatchExecutor
+    ) {
+        AppSpecificEnvelope.unwrap(it)?.let { data -> BaseServerSignal.AppSpecific(data) }
+            ?: org.withXR.network.v3.BaseServerSignal.parseFrom(it).toPoko()
+    }
+
+    // received while the dispatcher was full, reading waits until it is taken
+    private var undelivered: ByteArray? = null
+
+    private var lastSent = 0L
 
-    private val signalsOut = ArrayBlockingQueue<org.withXR.network.v3.BaseClientSignal>(1000)
-    private val signalsIn = event<BaseServerSignal>()
+    /** Set once the server advertised [BaseServerSignal.ServerHello.SIGNAL_BATCHES] */
+    @Volatile
+    var signalBatches = false
+        private set
+
+    // whether the server has been told that batches are understood here, by the first heartbeat
+    private var batchesAnnounced = false
+
+    /** Backlog of the listeners */
+    val dispatchStatus: DispatchStatus
+        get() = dispatcher.status
 
     init {
+        dispatcher.addListener {
+            if (it is BaseServerSignal.ServerHello && BaseServerSignal.ServerHello.SIGNAL_BATCHES in it.capabilities) {
+                signalBatches = true
+                wakeUp.wakeUp()
+            }
+        }
         listeners.forEach { addListener(it) }
 
-        val timeout = 200 //ms
-
         socket = zContext.createSocket(SocketType.DEALER)
-        socket.receiveTimeOut = timeout
         if (socket.connect("tcp://${host}:${port}")) {
             logger.info("${ControlSignalsClient::class.simpleName} connected to tcp://${host}:${port}")
         } else {
             throw IllegalStateException("Could not connect to ${ControlSignalsClient::class.simpleName} connected to tcp://${host}:${port}")
         }
 
-        signalsOut += BaseClientSignal.ClientSignOn.toProto()
+        poller.register(socket, ZMQ.Poller.POLLIN)
+        poller.register(wakeUp.receiver, ZMQ.Poller.POLLIN)
+
+        signalsOut += BaseClientSignal.ClientSignOn.toProto().toByteArray()
+        wakeUp.wakeUp()
 
         startAgent()
     }
 
     /**
-     * Don't add too elaborate listeners. They get executed by the network thread.
+     * A listener that blocks holds back the others once its queue is full, see [SignalDispatcher].
      */
     fun addListener(listener: (BaseServerSignal) -> Unit) {
-        synchronized(signalsIn) {
-            signalsIn += { listener(it) }
-        }
+        dispatcher.addListener(listener)
     }
 
-    fun sendSignal(signal: BaseClientSignal): Boolean {
-        if (!signalsOut.offer(signal.toProto(), 5000, TimeUnit.MILLISECONDS)) {
-            logger.warn("Dropped ${signal::class.simpleName} package because of full queue.")
+    fun sendSignal(signal: BaseClientSignal): Boolean =
+        queue(signal.toProto().toByteArray(), signal::class.simpleName)
+
+    /**
+     * Like [sendSignal] with [BaseClientSignal.AppSpecific] but serializes [data] only once, see [AppSpecificEnvelope].
+     */
+    fun sendAppSpecific(data: MessageLite): Boolean = queue(AppSpecificEnvelope.encode(data), data::class.simpleName)
+
+    private fun queue(payload: ByteArray, name: String?): Boolean {
+        if (!signalsOut.offer(payload, 5000, TimeUnit.MILLISECONDS)) {
+            logger.warn("Dropped $name package because of full queue.")
             return false
         }
+        wakeUp.wakeUp()
         return true
     }
 
     override fun onLoop() {
-
-        val payloadIn = socket.recv(ZMQ.DONTWAIT)
-        val outSignal = signalsOut.poll()
+        undelivered?.let { if (dispatcher.offer(it, 10)) undelivered = null }
+        if (undelivered == null) poller.poll(200)
+        wakeUp.clear()
 
         // process incoming messages first.
-        // First frame in each message is the sender identity
-        if (payloadIn != null) {
-            val event = org.withXR.network.v3.BaseServerSignal.parseFrom(payloadIn)
-
-            synchronized(signalsIn) {
-                signalsIn(event.toPoko())
-            }
+        while (undelivered == null) {
+            val payloadIn = socket.recv(ZMQ.DONTWAIT) ?: break
+            if (!dispatcher.offer(payloadIn)) undelivered = payloadIn
         }
 
         // process outgoing messages
-        if (outSignal != null) {
-            if (!socket.send(outSignal.toByteArray())) {
+        val batches = signalBatches
+        val batch = SignalBatch.Builder()
+        while (signalsOut.isNotEmpty()) {
+            while (true) {
+                val next = signalsOut.peek() ?: break
+                if (!batch.offer(next)) break
+                signalsOut.poll()
+                if (!batches) break
+            }
+            if (!socket.send(batch.build())) {
                 logger.error("ZMQ is busy and dropped a message")
             }
+            lastSent = System.currentTimeMillis()
         }
 
-        if (payloadIn == null && outSignal == null)
-            Thread.sleep(200)
+        val now = System.currentTimeMillis()
+        if (batches && (!batchesAnnounced || now - lastSent >= ControlSignalsServer.HEARTBEAT_INTERVAL_MS)) {
+            socket.send(HEARTBEAT, ZMQ.DONTWAIT)
+            batchesAnnounced = true
+            lastSent = now
+        }
     }
 
     override fun onClose() {
+        dispatcher.close()
+        poller.close()
+        wakeUp.close()
         socket.linger = 0
         socket.close()
 
     }
-}
\ No newline at end of file
+
+    companion object {
+        private val HEARTBEAT = ByteArray(0)
+    }
+}
@@ -1,7 +1,7 @@
 package microscenery.network
 
+import com.google.protobuf.MessageLite
 import fromScenery.lazyLogger
-import kotlinx.event.event
 import microscenery.Agent
 import microscenery.MicroscenerySettings
 import microscenery.Settings
@@ -10,7 +10,10 @@ import microscenery.signals.BaseClientSignal.Companion.toPoko
 import microscenery.signals.BaseServerSignal
 import org.zeromq.SocketType
 import org.zeromq.ZContext
+import org.zeromq.ZError
 import org.zeromq.ZMQ
+import org.zeromq.ZMQException
+import java.nio.ByteBuffer
 import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.TimeUnit
 
@@ -19,10 +22,24 @@ import java.util.concurrent.TimeUnit
  *
  * Tries the send the rest of the queue once shutdown is = true.
  *
- * Receive [BaseClientSignal]s via subscribing with a listener by [addListener].
- * Don't add too elaborate listeners. They get executed by the network thread.
+ * Receive [BaseClientSignal]s via subscribing with a listener by [addListener]. Listeners are executed off the network
+ * thread, each gets the signals in order and one at a time, see [SignalDispatcher]. The network thread only moves bytes.
  *
- * Send via [sendSignal].
+ * Send via [sendSignal]. Signals are broadcast to all clients that have sent something so far. Each client has its own
+ * queue of up to [CLIENT_QUEUE_SIZE] signals that is sent from without blocking, so a slow client only delays itself.
+ * If its queue is full the oldest signal in it is dropped. Signals with a coalesce key replace a queued one with the
+ * same key instead, e.g. status updates of which only the latest counts.
+ *
+ * Clients that know [BaseServerSignal.ServerHello.SIGNAL_BATCHES] send an empty message as heartbeat every
+ * [HEARTBEAT_INTERVAL_MS] they have been quiet, see [ControlSignalsClient]. The owner of this server advertises it in
+ * its hello, e.g. [RemoteMicroscopeServer]. Signals that pile up for such a client are sent as one message, see
+ * [SignalBatch]. Clients that never sent a heartbeat, e.g. of older versions, get single signals.
+ *
+ * Clients gone from the socket are forgotten, as are clients that sent heartbeats before but have not been heard from
+ * for [CLIENT_TIMEOUT_MS]. Clients that never sent one are kept.
+ *
+ * The network thread waits on the socket and is woken up for outgoing signals, see [WakeUpSocket]. Signals are
+ * therefore handled as soon as they arrive or are queued.
  */
 class ControlSignalsServer(
     zContext: ZContext, val port: Int = MicroscenerySettings.get(Settings.Network.BasePort, 4000),
@@ -32,93 +49,215 @@ class ControlSignalsServer(
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
     private val socket: ZMQ.Socket
+    private val wakeUp = WakeUpSocket(zContext)
+    private val poller = zContext.createPoller(2)
 
-    private val signalsOut = ArrayBlockingQueue<org.withXR.network.v3.BaseServerSignal>(1000)
-    private val signalsIn = event<BaseClientSignal>()
+    private val signalsOut = ArrayBlockingQueue<OutgoingSignal>(1000)
+    private val dispatcher = SignalDispatcher<BaseClientSignal>(ControlSignalsServer::class.simpleName ?: "") {
+        AppSpecificEnvelope.unwrap(it)?.let { data -> BaseClientSignal.AppSpecific(data) }
+            ?: org.withXR.network.v3.BaseClientSignal.parseFrom(it).toPoko()
+    }
+
+    // received while the dispatcher was full, reading waits until it is taken
+    private var undelivered: ByteArray? = null
 
-    private val clients = mutableSetOf<ByteArray>()
+    // by client identity. ByteBuffers compare by content.
+    private val clients = LinkedHashMap<ByteBuffer, ClientConnection>()
 
+    @Volatile
     internal var shutdown = false
 
     @Suppress("unused")
-    val connectedClients
-        get() = clients.size
+    @Volatile
+    var connectedClients = 0
+        private set
+
+    /** Number of signals dropped from full client queues */
+    @Volatile
+    var droppedSignals = 0L
+        private set
+
+    /** Number of signals replaced by a newer one with the same coalesce key before they were sent */
+    @Volatile
+    var coalescedSignals = 0L
+        private set
+
+    /** Number of messages sent to clients, each holds one or more signals */
+    @Volatile
+    var sentMessages = 0L
+        private set
+
+    /** Backlog of the listeners */
+    val dispatchStatus: DispatchStatus
+        get() = dispatcher.status
 
     init {
         listeners.forEach { addListener(it) }
 
         socket = zContext.createSocket(SocketType.ROUTER)
+        // report full and vanished clients instead of silently dropping
+        socket.setRouterMandatory(true)
         val adr = "tcp://${host}:${port}"
         socket.bind(adr)
         logger.info("${ControlSignalsServer::class.simpleName} bound to $adr")
+        poller.register(socket, ZMQ.Poller.POLLIN)
+        poller.register(wakeUp.receiver, ZMQ.Poller.POLLIN)
 
         startAgent()
     }
 
     /**
-     * Don't add too elaborate listeners. They get executed by the network thread.
+     * A listener that blocks holds back the others once its queue is full, see [SignalDispatcher].
      */
     fun addListener(listener: (BaseClientSignal) -> Unit) {
-        synchronized(signalsIn) {
-            signalsIn += { listener(it) }
-        }
+        dispatcher.addListener(listener)
     }
 
-    /** Queues signal to be sent in main loop */
-    fun sendSignal(signal: BaseServerSignal): Boolean {
-        if (!signalsOut.offer(signal.toProto(), 5000, TimeUnit.MILLISECONDS)) {
-            logger.warn("Dropped ${signal::class.simpleName} package because of full queue.")
+    /**
+     * Queues signal to be sent in main loop
+     *
+     * @param coalesceKey if set, replaces a not yet sent signal with the same key
+     */
+    fun sendSignal(signal: BaseServerSignal, coalesceKey: String? = null): Boolean =
+        queue(signal.toProto().toByteArray(), coalesceKey, signal::class.simpleName)
+
+    /**
+     * Like [sendSignal] with [BaseServerSignal.AppSpecific] but serializes [data] only once, see [AppSpecificEnvelope].
+     */
+    fun sendAppSpecific(data: MessageLite, coalesceKey: String? = null): Boolean =
+        queue(AppSpecificEnvelope.encode(data), coalesceKey, data::class.simpleName)
+
+    private fun queue(payload: ByteArray, coalesceKey: String?, name: String?): Boolean {
+        if (!signalsOut.offer(OutgoingSignal(payload, coalesceKey), 5000, TimeUnit.MILLISECONDS)) {
+            logger.warn("Dropped $name package because of full queue.")
             return false
         }
+        wakeUp.wakeUp()
         return true
     }
 
+    /**
+     * Hands the signals to the listeners as if they were received, after the ones received so far. Returns before the
+     * listeners ran, it only blocks while the dispatcher is full.
+     */
     fun sendInternalSignals(signals: List<BaseClientSignal>) {
-        synchronized(signalsIn) {
-            signals.forEach { signalsIn(it) }
-        }
+        signals.forEach { dispatcher.dispatch(it) }
     }
 
     override fun onLoop() {
-        val identity = socket.recv(ZMQ.DONTWAIT)
-        val outSignal = signalsOut.poll()
+        undelivered?.let { if (dispatcher.offer(it, 10)) undelivered = null }
+        if (undelivered == null) {
+            // clients that could not take everything are tried again soon
+            poller.poll(if (clients.values.any { it.queue.isNotEmpty() }) 10 else 200)
+        }
+        wakeUp.clear()
+        val now = System.currentTimeMillis()
 
         // process incoming messages first.
         // First frame in each message is the sender identity
-        if (identity != null) {
-            clients += identity
-            val event = org.withXR.network.v3.BaseClientSignal.parseFrom(socket.recv())
-
-            synchronized(signalsIn) {
-                signalsIn(event.toPoko())
-            }
+        while (undelivered == null) {
+            val identity = socket.recv(ZMQ.DONTWAIT) ?: break
+            val payload = socket.recv()
+            val client = clients.getOrPut(ByteBuffer.wrap(identity)) { ClientConnection(identity) }
+            client.lastSeen = now
+            // heartbeats are empty and skipped
+            if (payload.isEmpty()) client.sendsHeartbeats = true
+            else if (!dispatcher.offer(payload)) undelivered = payload
         }
 
-        // process outgoing messages
-        if (outSignal != null) {
-            val payload = outSignal.toByteArray()
-
-            // publish to all clients
-            clients.forEach { ident ->
-                val isQueued = socket.sendMore(ident) && socket.send(payload)
-                if (!isQueued) logger.error("ZMQ dropped messages :(")
-                Thread.sleep(1)
+        // process outgoing messages, publish to all clients
+        while (true) {
+            val outSignal = signalsOut.poll() ?: break
+            clients.values.forEach { enqueue(it, outSignal) }
+        }
+        val iterator = clients.values.iterator()
+        while (iterator.hasNext()) {
+            val client = iterator.next()
+            // clients are not heard while reading waits for the dispatcher
+            if (undelivered == null && client.sendsHeartbeats && now - client.lastSeen > CLIENT_TIMEOUT_MS) {
+                logger.info("Client ${client.name} timed out.")
+                iterator.remove()
+            } else if (!flush(client)) {
+                logger.info("Client ${client.name} disconnected.")
+                iterator.remove()
             }
-
-
         }
+        connectedClients = clients.size
 
-        if (identity == null && outSignal == null)
-            Thread.sleep(200)
         if (shutdown) {
             this.close()
         }
     }
 
+    private fun enqueue(client: ClientConnection, signal: OutgoingSignal) {
+        if (client.queue.add(signal)) {
+            coalescedSignals++
+        } else if (client.queue.size > CLIENT_QUEUE_SIZE) {
+            client.queue.poll()
+            droppedSignals++
+            logger.debug("Dropped signal for slow client ${client.name}.")
+        }
+    }
+
+    /**
+     * Sends queued signals until the client can't take more, in batches if it understands them.
+     *
+     * @return false if the client is gone
+     */
+    private fun flush(client: ClientConnection): Boolean {
+        val batch = SignalBatch.Builder()
+        try {
+            while (client.queue.isNotEmpty()) {
+                // EAGAIN: the pipe to this client is full, try again later
+                if (!socket.send(client.identity, ZMQ.SNDMORE or ZMQ.DONTWAIT)) return true
+                while (true) {
+                    val next = client.queue.peek() ?: break
+                    if (!batch.offer(next.payload)) break
+                    client.queue.poll()
+                    // only clients that send heartbeats understand batches
+                    if (!client.sendsHeartbeats) break
+                }
+                // the pipe has been checked with the identity frame already
+                if (!socket.send(batch.build(), ZMQ.DONTWAIT)) logger.error("ZMQ dropped messages :(")
+                sentMessages++
+            }
+        } catch (e: ZMQException) {
+            // other errors than EAGAIN are thrown
+            if (e.errorCode != ZError.EHOSTUNREACH) throw e
+            return false
+        }
+        return true
+    }
+
     override fun onClose() {
+        dispatcher.close()
+        poller.close()
+        wakeUp.close()
         socket.linger = 0
         socket.close()
     }
 
+    private class OutgoingSignal(val payload: ByteArray, val coalesceKey: String?)
+
+    private class ClientConnection(val identity: ByteArray) {
+        val queue = CoalescingQueue<OutgoingSignal> { it.coalesceKey }
+        var lastSeen = System.currentTimeMillis()
+        var sendsHeartbeats = false
+
+        val name: String
+            get() = identity.joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        /** Signals queued per client before the oldest is dropped */
+        const val CLIENT_QUEUE_SIZE = 1000
+
+        /** Time after which a quiet client sends a heartbeat */
+        const val HEARTBEAT_INTERVAL_MS = 1000
+
+        /** Time after which a client that sends heartbeats but has not sent anything, not even them, is forgotten */
+        const val CLIENT_TIMEOUT_MS = 5000
+    }
+
 
 }
\ No newline at end of file
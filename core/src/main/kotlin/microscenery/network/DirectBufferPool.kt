@@ -0,0 +1,38 @@
+package microscenery.network
+
+import org.lwjgl.system.MemoryUtil
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Recycles off-heap buffers of [bufferSize] bytes, e.g. for chunks that have to be assembled before they are sent with
+ * [ZeroCopySender]. At most [maxPooled] released buffers are kept, further ones are freed.
+ *
+ * Not thread safe.
+ */
+internal class DirectBufferPool(val bufferSize: Int, private val maxPooled: Int = 4) {
+
+    private val pooled = ArrayDeque<ByteBuffer>()
+
+    /**
+     * @return a cleared buffer to be given back with [release]
+     */
+    fun acquire(): ByteBuffer {
+        val buffer = pooled.pollFirst() ?: return MemoryUtil.memAlloc(bufferSize)
+        // this cast has to be done to be compatible with JDK 8
+        (buffer as Buffer).clear()
+        return buffer
+    }
+
+    fun release(buffer: ByteBuffer) {
+        if (pooled.size < maxPooled) pooled.addFirst(buffer) else MemoryUtil.memFree(buffer)
+    }
+
+    /**
+     * Frees the pooled buffers. Buffers released later on are pooled again.
+     */
+    fun close() {
+        while (true) MemoryUtil.memFree(pooled.pollFirst() ?: return)
+    }
+}
@@ -0,0 +1,172 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import kotlin.math.abs
+
+const val MIN_PIPELINE = 2
+const val MAX_PIPELINE = 64
+const val MIN_CHUNK_SIZE = 64 * 1024
+const val MAX_CHUNK_SIZE = 4 * 1024 * 1024
+
+/**
+ * Decides how many chunk requests [BiggishDataClient] keeps in flight ([window]) and how large they are ([chunkSize]).
+ *
+ * If not [adaptive] the values stay at [PIPELINE] and [CHUNK_SIZE].
+ * Otherwise, similar to delay based TCP congestion control, the window grows once per round trip while the round trip
+ * time stays close to the minimal one seen and shrinks multiplicatively once it inflates, since that means buffers
+ * somewhere on the way are filling up. The chunk size follows the measured throughput so that one chunk takes about
+ * [TARGET_CHUNK_TIME_NANOS] to transfer.
+ *
+ * Not thread safe. Only to be used by the agent thread of [BiggishDataClient].
+ */
+class FlowControl(val adaptive: Boolean = MicroscenerySettings.get(Settings.Network.AdaptiveFlowControl, false)) {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    var window = PIPELINE
+        private set
+    var chunkSize = CHUNK_SIZE
+        private set
+
+    private var smoothedRttNanos = 0L
+    private var rttVarianceNanos = 0L
+    private var minRttNanos = Long.MAX_VALUE
+    private var throughputBytesPerSecond = 0L
+
+    private var slowStart = true
+    private var bestThroughput = 0L
+
+    // current measurement epoch, lasts about one round trip
+    private var epochStart = 0L
+    private var epochBytes = 0L
+    private var epochWindowLimited = false
+    private var epochCount = 0L
+
+    /**
+     * Latest measurements. Can be read from any thread.
+     */
+    @Volatile
+    var status = FlowControlStatus(window, chunkSize, 0, 0f)
+        private set
+
+    fun onRequestSent(now: Long, inFlight: Int) {
+        if (epochStart == 0L) epochStart = now
+        if (inFlight >= window) epochWindowLimited = true
+    }
+
+    /**
+     * Time after which a request is considered lost. Like in TCP, the smoothed round trip time plus four times its
+     * variance.
+     */
+    val retransmissionTimeoutNanos: Long
+        get() = if (smoothedRttNanos == 0L) INITIAL_RTO_NANOS
+        else (smoothedRttNanos + 4 * rttVarianceNanos).coerceAtLeast(MIN_RTO_NANOS)
+
+    /**
+     * @param rttNanos time between sending the request and receiving its reply. 0 if unknown, e.g. for retransmissions.
+     * @param inFlight requests still in flight after this reply
+     */
+    fun onReplyReceived(now: Long, bytes: Int, rttNanos: Long, inFlight: Int) {
+        if (rttNanos > 0) {
+            if (smoothedRttNanos == 0L) {
+                smoothedRttNanos = rttNanos
+                rttVarianceNanos = rttNanos / 2
+            } else {
+                rttVarianceNanos = (3 * rttVarianceNanos + abs(smoothedRttNanos - rttNanos)) / 4
+                smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8
+            }
+            minRttNanos = minOf(minRttNanos, rttNanos)
+        }
+        epochBytes += bytes
+
+        if (epochStart != 0L && smoothedRttNanos != 0L && now - epochStart >= maxOf(smoothedRttNanos, MIN_EPOCH_NANOS)) {
+            endEpoch(now)
+        }
+        if (inFlight == 0) {
+            // idle time should not count against the throughput
+            epochStart = 0L
+            epochBytes = 0L
+            epochWindowLimited = false
+        }
+    }
+
+    private fun endEpoch(now: Long) {
+        val epochThroughput = epochBytes * 1_000_000_000L / (now - epochStart)
+        throughputBytesPerSecond = if (throughputBytesPerSecond == 0L) epochThroughput
+        else (3 * throughputBytesPerSecond + epochThroughput) / 4
+
+        if (adaptive) {
+            adaptWindow(epochThroughput)
+            chunkSize = (throughputBytesPerSecond * TARGET_CHUNK_TIME_NANOS / 1_000_000_000L)
+                .coerceIn(MIN_CHUNK_SIZE.toLong(), MAX_CHUNK_SIZE.toLong()).toInt()
+                .let { it - it % CHUNK_ALIGNMENT }
+        }
+
+        epochCount++
+        if (epochCount % MIN_RTT_REFRESH_EPOCHS == 0L) {
+            // allow the path to become slower, e.g. after switching networks
+            minRttNanos = smoothedRttNanos
+        }
+
+        epochStart = now
+        epochBytes = 0L
+        epochWindowLimited = false
+
+        status = FlowControlStatus(
+            window, chunkSize, throughputBytesPerSecond, smoothedRttNanos / 1_000_000f
+        )
+        logger.debug("Flow control: $status")
+    }
+
+    private fun adaptWindow(epochThroughput: Long) {
+        when {
+            smoothedRttNanos > minRttNanos * RTT_INFLATION_FACTOR -> {
+                window = maxOf(MIN_PIPELINE, window * 3 / 4)
+                slowStart = false
+            }
+            // growing is pointless if we did not even use the whole window
+            !epochWindowLimited -> {}
+            slowStart -> {
+                if (epochThroughput > bestThroughput + bestThroughput / 10) {
+                    window = minOf(MAX_PIPELINE, window * 2)
+                } else {
+                    slowStart = false
+                }
+            }
+
+            else -> window = minOf(MAX_PIPELINE, window + 1)
+        }
+        bestThroughput = maxOf(bestThroughput, epochThroughput)
+    }
+
+    /**
+     * Call if a request timed out. Treated like a heavily inflated round trip time.
+     */
+    fun onLoss() {
+        if (adaptive) {
+            window = maxOf(MIN_PIPELINE, window / 2)
+            slowStart = false
+        }
+    }
+
+    companion object {
+        private const val INITIAL_RTO_NANOS = 3_000_000_000L
+        private const val MIN_RTO_NANOS = 300_000_000L
+        private const val MIN_EPOCH_NANOS = 1_000_000L
+        private const val TARGET_CHUNK_TIME_NANOS = 2_000_000L
+        private const val RTT_INFLATION_FACTOR = 2
+        private const val MIN_RTT_REFRESH_EPOCHS = 500L
+        private const val CHUNK_ALIGNMENT = 4096
+    }
+}
+
+/**
+ * @param rttMillis smoothed round trip time of a chunk request
+ */
+data class FlowControlStatus(
+    val window: Int,
+    val chunkSize: Int,
+    val throughputBytesPerSecond: Long,
+    val rttMillis: Float
+)
@@ -0,0 +1,37 @@
+package microscenery.network
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Consecutive live frames of a still stage are nearly identical. Sent as the bitwise XOR to a frame the client already
+ * holds, most bytes are zero and [DeltaBitPackCodec] packs them into almost nothing. XOR is its own inverse, so the
+ * client applies the same operation to get the frame back.
+ *
+ * The client decides which frame is the base, see [BiggishDataClient.requestSlice], and fetches a whole frame every
+ * [KEYFRAME_INTERVAL] frames, so it recovers from a broken chain.
+ */
+object FrameDelta {
+    /** Number of frames fetched as difference before a whole one is fetched again */
+    const val KEYFRAME_INTERVAL = 30
+
+    /**
+     * Writes `a xor b` of the [length] bytes at [offset] to [dst] at [dstOffset]. Uses absolute positions only.
+     * [dst] may be [a].
+     */
+    fun xor(a: ByteBuffer, b: ByteBuffer, offset: Int, length: Int, dst: ByteBuffer, dstOffset: Int) {
+        // the words have to be read and written in the same byte order
+        val first = a.duplicate().order(ByteOrder.nativeOrder())
+        val second = b.duplicate().order(ByteOrder.nativeOrder())
+        val target = dst.duplicate().order(ByteOrder.nativeOrder())
+        var i = 0
+        while (i + 8 <= length) {
+            target.putLong(dstOffset + i, first.getLong(offset + i) xor second.getLong(offset + i))
+            i += 8
+        }
+        while (i < length) {
+            target.put(dstOffset + i, (first.get(offset + i).toInt() xor second.get(offset + i).toInt()).toByte())
+            i++
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import org.zeromq.ZContext
+
+/**
+ * Connects one viewer to several remote microscopes, e.g. to show them side by side. Each one is a
+ * [RemoteMicroscopeClient] and thereby its own [microscenery.hardware.MicroscopeHardware].
+ *
+ * Shared by all connections are only the I/O threads of [zContext] and one pool that runs the signal listeners of all
+ * of them, see [SignalDispatcher.newPool]. If configured, they also use the memory of [SliceCache.shared]. Everything
+ * else is per microscope as if it was connected on its own: the agent threads of its control and data connections,
+ * their sockets and their receive buffers.
+ *
+ * Microscopes are added by [connect] or, if [discover] is set, as soon as their [RemoteMicroscopeServer] is found
+ * through its [BonjourService]. [onAdded] and [onRemoved] are called for each one.
+ *
+ * Thread safe.
+ */
+class RemoteMicroscopeAggregator(
+    val zContext: ZContext,
+    discover: Boolean = true,
+    private val onAdded: (RemoteMicroscopeClient) -> Unit = {},
+    private val onRemoved: (RemoteMicroscopeClient) -> Unit = {}
+) {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    private val dispatchPool = SignalDispatcher.newPool(RemoteMicroscopeAggregator::class.simpleName ?: "")
+
+    // by "host:port", guarded by itself
+    private val clients = LinkedHashMap<String, RemoteMicroscopeClient>()
+
+    private val explorer = if (discover) {
+        BonjourExplorer(text = "RemoteMicroscope", onFound = { _, host, port -> connect(host, port) },
+            onLost = { _, host, port -> disconnect(host, port) })
+    } else null
+
+    /**
+     * The connected microscopes by "host:port"
+     */
+    val microscopes: Map<String, RemoteMicroscopeClient>
+        get() = synchronized(clients) { clients.toMap() }
+
+    /**
+     * Does nothing if the microscope is already connected.
+     *
+     * @return the connection to the microscope at [host] and [basePort]
+     */
+    fun connect(host: String, basePort: Int): RemoteMicroscopeClient {
+        val key = "$host:$basePort"
+        val client = synchronized(clients) {
+            clients[key]?.let { return it }
+            RemoteMicroscopeClient(basePort, host, zContext, dispatchExecutor = dispatchPool)
+                .also { clients[key] = it }
+        }
+        logger.info("Connected to microscope at $key")
+        onAdded(client)
+        return client
+    }
+
+    /**
+     * Closes the connection to the microscope at [host] and [basePort] without shutting it down.
+     */
+    fun disconnect(host: String, basePort: Int) {
+        val key = "$host:$basePort"
+        val client = synchronized(clients) { clients.remove(key) } ?: return
+        client.disconnect()
+        logger.info("Disconnected from microscope at $key")
+        onRemoved(client)
+    }
+
+    /**
+     * Disconnects from all microscopes without shutting them down.
+     */
+    fun close() {
+        explorer?.close()
+        val all = synchronized(clients) { clients.values.toList().also { clients.clear() } }
+        all.forEach {
+            it.disconnect()
+            onRemoved(it)
+        }
+        dispatchPool.shutdownNow()
+    }
+}
@@ -8,6 +8,7 @@ import microscenery.signals.*
 import microscenery.signals.RemoteMicroscopeSignal.Companion.toPoko
 import org.joml.Vector3f
 import org.zeromq.ZContext
+import java.util.concurrent.Executor
 import java.util.concurrent.Semaphore
 
 /**
@@ -15,17 +16,39 @@ import java.util.concurrent.Semaphore
  * Translates [MicroscopeControlSignal]s to [BaseClientSignal]s to be received by [RemoteMicroscopeServer].
  *
  * Fetches slice data via [BiggishDataClient].
+ *
+ * @param wholeSlices fetch every slice whole and into its own buffer, e.g. to serve them again like
+ * [RemoteMicroscopeRelay]. Regions and previews are not used then. Bulk stack transfers, see
+ * [Settings.Network.BulkStacks], are split into a buffer per slice.
+ * @param dispatchExecutor runs the signal listeners, see [ControlSignalsClient]
  */
 class RemoteMicroscopeClient(
     basePort: Int = MicroscenerySettings.get(Settings.Network.BasePort, 4000),
     host: String = MicroscenerySettings.get(Settings.Network.Host, "localhost"),
     val zContext: ZContext,
-    val nonMicroscopeMode: Boolean = false
+    val nonMicroscopeMode: Boolean = false,
+    val wholeSlices: Boolean = false,
+    dispatchExecutor: Executor? = null
 ) : MicroscopeHardwareAgent() {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
-    private val controlConnection = ControlSignalsClient(zContext, basePort, host, listOf())
-    private val sliceRequester = SliceRequester(controlConnection, listOf(this::processServerSignal))
+    private val controlConnection = ControlSignalsClient(zContext, basePort, host, listOf(), dispatchExecutor)
+    private val sliceRequester = if (wholeSlices) {
+        SliceRequester(
+            controlConnection, listOf(this::processServerSignal), resolutionPyramid = false, ownedSliceBuffers = true
+        )
+    } else {
+        SliceRequester(controlConnection, listOf(this::processServerSignal))
+    }
+
+    /**
+     * Region of single slices to fetch, e.g. while zoomed in. Null for whole slices. See [SliceRequester.roi].
+     */
+    var roi: SliceRoi?
+        get() = sliceRequester.roi
+        set(value) {
+            if (!wholeSlices) sliceRequester.roi = value
+        }
 
     init {
         //startAgent() we dont need the agent, we just like to use the other stuff [MicroscopeHardwareAgent] brings
@@ -44,6 +67,8 @@ class RemoteMicroscopeClient(
     }
 
     override fun acquireStack(meta: MicroscopeControlSignal.AcquireStack) {
+        // the microscope captures whole slices, only the region of them is fetched
+        if (!wholeSlices) sliceRequester.nextStackRoi = SliceRoi.fromCorners(meta.roiStart, meta.roiEnd)
         sendBaseWrappedSignal(meta)
     }
 
@@ -72,15 +97,15 @@ class RemoteMicroscopeClient(
     }
 
     private fun sendBaseWrappedSignal(signal: MicroscopeControlSignal) =
-        controlConnection.sendSignal(BaseClientSignal.AppSpecific(signal.toProto().toByteString()))
+        controlConnection.sendAppSpecific(signal.toProto())
 
     /**
-     * Executed by the network thread of [ControlSignalsClient]
+     * Executed by the listener dispatch of [ControlSignalsClient]
      */
     private fun processServerSignal(signal: BaseServerSignal) {
         when (val s = unwrapToRemoteMicroscopeSignal(signal)) {
             null -> {}
-            is RemoteMicroscopeStatus -> {}
+            is RemoteMicroscopeStatus -> sliceRequester.connectDataPorts(s.dataPorts)
             is ActualMicroscopeSignal -> {
                 when (val microscopeSignal = s.signal) {
                     is HardwareDimensions -> {
@@ -93,6 +118,7 @@ class RemoteMicroscopeClient(
                             sliceRequester.close()
                             this.close()
                         }
+                        sliceRequester.liveMode = microscopeSignal.live || microscopeSignal.state == ServerState.LIVE
                         status = microscopeSignal
                     }
 
@@ -130,6 +156,14 @@ class RemoteMicroscopeClient(
         }
     }
 
+    /**
+     * Closes the connection without shutting down the remote microscope.
+     */
+    fun disconnect() {
+        controlConnection.close()
+        sliceRequester.close()
+    }
+
     @Suppress("unused")
     override fun shutdown() {
         logger.info("Got Stop Command")
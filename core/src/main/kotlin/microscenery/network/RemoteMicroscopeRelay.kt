@@ -0,0 +1,55 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import microscenery.hardware.MicroscopeHardware
+import microscenery.signals.BaseServerSignal
+import microscenery.signals.ServerType
+import org.zeromq.ZContext
+
+/**
+ * Serves one remote microscope to many viewers, e.g. in a teaching session.
+ *
+ * Connects to the [RemoteMicroscopeServer] at [upstreamHost] and [upstreamPort] as a single [RemoteMicroscopeClient]
+ * and presents itself as a [RemoteMicroscopeServer] at [basePort]. Each slice is fetched once from upstream, kept in
+ * [storage] and served from there to all viewers, so the traffic of the microscope doesn't grow with their number.
+ * If stacks are fetched in bulk, see [Settings.Network.BulkStacks], each slice of a transfer is copied into a buffer of
+ * its own before it is stored. Commands of the viewers are passed upstream.
+ *
+ * A viewer that shuts the relay down, see [microscenery.signals.MicroscopeControlSignal.Shutdown], only disconnects
+ * it. The microscope keeps running.
+ */
+class RemoteMicroscopeRelay @JvmOverloads constructor(
+    zContext: ZContext,
+    val upstreamHost: String = MicroscenerySettings.get(Settings.Network.Host, "localhost"),
+    val upstreamPort: Int = MicroscenerySettings.get(Settings.Network.BasePort, 4000),
+    val basePort: Int = MicroscenerySettings.get(Settings.Network.RelayBasePort, upstreamPort + 200),
+    val host: String = "*",
+    val storage: SliceStorage = SliceStorage(),
+    announceWithBonjour: Boolean = MicroscenerySettings.get(Settings.Network.AnnounceBonjour, true)
+) {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    val upstream = RemoteMicroscopeClient(upstreamPort, upstreamHost, zContext, wholeSlices = true)
+
+    val server = RemoteMicroscopeServer(
+        object : MicroscopeHardware by upstream {
+            override fun shutdown() {
+                logger.info("Disconnecting from $upstreamHost:$upstreamPort.")
+                upstream.disconnect()
+            }
+        },
+        zContext,
+        storage,
+        basePort,
+        host,
+        announceWithBonjour = announceWithBonjour,
+        serverHello = BaseServerSignal.ServerHello("relay of $upstreamHost:$upstreamPort", ServerType.MICROSCOPE, "relay")
+    )
+
+    /**
+     * Disconnects from the microscope and stops serving the viewers.
+     */
+    fun shutdown() = server.shutdown()
+}
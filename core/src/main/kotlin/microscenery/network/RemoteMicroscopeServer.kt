@@ -16,6 +16,16 @@ import kotlin.properties.Delegates
  * Wraps an [MicroscopeHardware] and sends its output as [MicoscopeSignal]s wrapped in [BaseClientSignal].
  * Also puts captured slice data into [SliceStorage] to be requested by [BiggishDataClient].
  * @param acquireOnConnect tries to resend the last stack or trigger a new capture on client connect
+ * @param dataConnections number of [BiggishDataServer]s, each with its own port, socket and thread
+ * @param pushSlices additionally stream all slices via a [SlicePushServer] at [basePort] + [PUSH_PORT_OFFSET]
+ * @param sharedMemory additionally write all slices to a [SharedSliceRing] for clients on the same host. This costs
+ * a copy of each slice on the thread of this server and a mapped file of [Settings.Network.SharedMemorySizeMb], which
+ * is deleted on close. Off by default.
+ *
+ * The output of [microscope] is drained as fast as it comes, status and hardware dimensions are latest wins until
+ * they are sent. Stale stage positions therefore neither take up [MicroscopeHardware.output] nor the network. Slices
+ * and all other signals are kept. At most [PENDING_SIGNALS] signals are taken ahead, beyond that the microscope is
+ * held back by its full output as before.
  */
 @Suppress("MemberVisibilityCanBePrivate", "CanBeParameter")
 class RemoteMicroscopeServer @JvmOverloads constructor(
@@ -27,20 +37,49 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
     val acquireOnConnect: Boolean = false,
     val announceWithBonjour: Boolean = MicroscenerySettings.get(Settings.Network.AnnounceBonjour,true),
     var serverHello: BaseServerSignal.ServerHello =
-        BaseServerSignal.ServerHello("a microscope", ServerType.MICROSCOPE, "")
+        BaseServerSignal.ServerHello("a microscope", ServerType.MICROSCOPE, ""),
+    val dataConnections: Int = MicroscenerySettings.get(Settings.Network.DataConnections, 1),
+    val pushSlices: Boolean = MicroscenerySettings.get(Settings.Network.PushSlices, false),
+    val sharedMemory: Boolean = MicroscenerySettings.get(Settings.Network.SharedMemory, false)
 ) : Agent(false) {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
     private val controlConnection = ControlSignalsServer(zContext, basePort, host = host, listOf(this::processClientSignal))
-    val dataSender = BiggishDataServer(basePort + 1, host = host, storage, zContext)
+    val dataSenders = (1..dataConnections.coerceAtLeast(1)).map {
+        BiggishDataServer(basePort + it, host = host, storage, zContext)
+    }
+
+    @Deprecated("There may be several, one per data connection", ReplaceWith("dataSenders.first()"))
+    val dataSender: BiggishDataServer
+        get() = dataSenders.first()
+
+    val pushServer = if (pushSlices) SlicePushServer(basePort + PUSH_PORT_OFFSET, host, zContext) else null
+    val sharedRing = if (sharedMemory) {
+        SharedSliceRing.create(basePort, MicroscenerySettings.get(Settings.Network.SharedMemorySizeMb, 256) * 1024 * 1024)
+    } else null
     val bonjourService = if (announceWithBonjour) BonjourService() else null
 
     private var lastStack: Stack? = null
         set(value) {
-            lastStackSlices = emptyList()
+            synchronized(lastStackSlices) { lastStackSlices.clear() }
             field = value
         }
-    private var lastStackSlices = emptyList<Slice>()
+    // announced slices of the last stack. Guarded by itself, it is read by the listener dispatch on client sign on.
+    private val lastStackSlices = ArrayList<Slice>()
+
+    // taken from the microscope but not processed yet
+    private val pendingSignals = CoalescingQueue<MicroscopeSignal> { signal ->
+        when (signal) {
+            is MicroscopeStatus -> MicroscopeStatus::class
+            is HardwareDimensions -> HardwareDimensions::class
+            else -> null
+        }
+    }
+
+    /** Number of status and hardware dimension signals skipped since a newer one came before they were sent */
+    @Volatile
+    var coalescedSignals = 0L
+        private set
 
     var status: RemoteMicroscopeStatus by Delegates.observable(
         RemoteMicroscopeStatus(emptyList(), 0)
@@ -50,7 +89,7 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
     }
 
     init {
-        status = RemoteMicroscopeStatus(listOf(dataSender.port), 0)
+        status = RemoteMicroscopeStatus(dataSenders.map { it.port }, 0)
         startAgent()
     }
 
@@ -59,25 +98,38 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
     }
 
     override fun onLoop() {
-        val signal = microscope.output.poll(200, TimeUnit.MILLISECONDS) ?: return
+        if (pendingSignals.isEmpty()) {
+            pendingSignals.add(microscope.output.poll(200, TimeUnit.MILLISECONDS) ?: return)
+        }
+        takePendingSignals()
+        val signal = pendingSignals.poll() ?: return
 
         when (signal) {
             is MicroscopeSlice -> {
                 signal.slice.data?.let {
-                    storage.addSlice(signal.slice.Id, signal.slice.data)
-                    sendBaseWrappedSignal(ActualMicroscopeSignal(MicroscopeSlice(signal.slice.copy(data = null))))
+                    val slice = signal.slice
+                    storage.addSlice(
+                        slice.Id, it, slice.imageMeta.numericType, slice.stackIdAndSliceIndex, slice.imageMeta.imageSize
+                    )
+                    pushServer?.let { push -> storage.acquireSlice(slice.Id)?.let { push.push(slice, it) } }
+                    sharedRing?.write(slice.Id, slice.created, it)
+                    sendBaseWrappedSignal(ActualMicroscopeSignal(MicroscopeSlice(slice.copy(data = null))))
                 }
             }
 
             else -> sendBaseWrappedSignal(ActualMicroscopeSignal(signal))
         }
     }
-    
+
+    private fun takePendingSignals() {
+        while (pendingSignals.size < PENDING_SIGNALS) {
+            if (pendingSignals.add(microscope.output.poll() ?: return)) coalescedSignals++
+        }
+    }
+
     private fun sendBaseWrappedSignal(signal: RemoteMicroscopeSignal, isResend: Boolean = false){
         val wrapped = when (signal) {
-            is RemoteMicroscopeStatus -> {
-                BaseServerSignal.AppSpecific(signal.toProto().toByteString())
-            }
+            is RemoteMicroscopeStatus -> null
             is ActualMicroscopeSignal -> when (signal.signal) {
                 is MicroscopeStack -> {
                     lastStack = signal.signal.stack
@@ -86,7 +138,7 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
                 is MicroscopeSlice -> {
                     val slice = signal.signal.slice
                     if (slice.stackIdAndSliceIndex?.first == lastStack?.Id){
-                        lastStackSlices += slice
+                        synchronized(lastStackSlices) { lastStackSlices += slice }
                     }
                     slice
 
@@ -94,22 +146,42 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
                 else -> {
                     if (signal.signal is HardwareDimensions && !isResend){
                         lastStack = null
-                        lastStackSlices = emptyList()
                     }
-                    BaseServerSignal.AppSpecific(signal.toProto().toByteString())
+                    null
                 }
             }
         }
-        controlConnection.sendSignal(wrapped)
+        // app specific signals are serialized in one go
+        if (wrapped != null) {
+            controlConnection.sendSignal(wrapped, coalesceKey(signal))
+        } else {
+            controlConnection.sendAppSpecific(signal.toProto(), coalesceKey(signal))
+        }
+    }
+
+    /**
+     * Only the latest status and dimensions matter to clients that are behind.
+     */
+    private fun coalesceKey(signal: RemoteMicroscopeSignal): String? = when (signal) {
+        is RemoteMicroscopeStatus -> "remote status"
+        is ActualMicroscopeSignal -> when (signal.signal) {
+            is MicroscopeStatus -> "status"
+            is HardwareDimensions -> "hardware dimensions"
+            else -> null
+        }
     }
 
     /**
-     * Executed by the network thread of [ControlSignalsServer]
+     * Executed by the listener dispatch of [ControlSignalsServer]
      */
     private fun processClientSignal(bcs: BaseClientSignal) {
         when (bcs) {
             BaseClientSignal.ClientSignOn -> {
-                controlConnection.sendSignal(serverHello)
+                controlConnection.sendSignal(
+                    serverHello.withCapabilities(
+                        BaseServerSignal.ServerHello.CHUNK_EXTENSIONS, BaseServerSignal.ServerHello.SIGNAL_BATCHES
+                    )
+                )
                 status = status.copy(connectedClients = status.connectedClients + 1)
                 sendBaseWrappedSignal(ActualMicroscopeSignal(microscope.hardwareDimensions()), isResend = true)
                 sendBaseWrappedSignal(ActualMicroscopeSignal(microscope.status()), isResend = true)
@@ -117,7 +189,7 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
                     lastStack?.let { stack ->
                         logger.info("Resending last stack for new client")
                         controlConnection.sendSignal(stack)
-                        lastStackSlices.forEach(controlConnection::sendSignal)
+                        synchronized(lastStackSlices) { lastStackSlices.toList() }.forEach(controlConnection::sendSignal)
                     } ?: run {
                         logger.info("No previous stack found, acquiring new stack for new client.")
                         microscope.acquireStack(MicroscopeControlSignal.AcquireStack(Vector3f(), Vector3f(), 1f))
@@ -138,7 +210,8 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
                         logger.info("Shutting down server.")
                         microscope.shutdown()
                         controlConnection.shutdown = true
-                        dataSender.close()
+                        dataSenders.forEach { it.close() }
+                        pushServer?.close()
                         close()
                     }
 
@@ -153,12 +226,19 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
         }
     }
 
+    /**
+     * Asynchronous like a command of a client, see [ControlSignalsServer.sendInternalSignals]. The microscope might
+     * not have stopped yet when this returns.
+     */
     @Suppress("unused")
     fun stop() {
         logger.info("Got stop Command")
         controlConnection.sendInternalSignals(listOf(MicroscopeControlSignal.Stop.toBaseSignal()))
     }
 
+    /**
+     * Asynchronous like [stop]. The server and the microscope might still be running when this returns.
+     */
     @Suppress("unused")
     fun shutdown() {
         logger.info("Got Stop Command")
@@ -172,7 +252,18 @@ class RemoteMicroscopeServer @JvmOverloads constructor(
     fun getSettings() = MicroscenerySettings
 
     override fun onClose() {
-        dataSender.close().join()
+        dataSenders.map { it.close() }.forEach { it.join() }
+        pushServer?.close()?.join()
+        sharedRing?.close()
+        storage.close()
         bonjourService?.close()
     }
-}
\ No newline at end of file
+
+    companion object {
+        /**
+         * Signals taken from the microscope output ahead of processing. As many as
+         * [microscenery.hardware.MicroscopeHardwareAgent] buffers.
+         */
+        const val PENDING_SIGNALS = 50
+    }
+}
@@ -0,0 +1,226 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import org.lwjgl.system.MemoryUtil
+import sun.misc.Unsafe
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.InetAddress
+import java.net.NetworkInterface
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Slice data shared by a [RemoteMicroscopeServer] with clients on the same host through a memory mapped file, see
+ * [file]. Clients copy a slice straight out of it instead of fetching it over TCP loopback.
+ *
+ * The server writes slices one after another into a ring of [capacity] bytes, overwriting the oldest ones. A table
+ * with a slot per slice id tells where a slice is. Readers never block the writer, instead they check afterwards
+ * whether the slot or the data were changed while copying, like a seqlock. Since ids repeat across server runs,
+ * readers also compare size and creation time with the announcement of the slice.
+ *
+ * Layout, little endian: header, table of [TABLE_SLOTS] slots, data ring.
+ *
+ * The server invalidates and deletes the file on [close]. Clients notice that by [valid] and open the file of the
+ * next server run instead.
+ */
+class SharedSliceRing private constructor(private val buffer: MappedByteBuffer, private val file: File) {
+
+    val capacity = buffer.getInt(CAPACITY)
+    private val dataStart = HEADER_SIZE + TABLE_SLOTS * SLOT_SIZE
+
+    /**
+     * Only for the server, not thread safe. Position and limit of [data] are ignored.
+     *
+     * @return false if the slice does not fit
+     */
+    fun write(id: Int, created: Long, data: ByteBuffer): Boolean {
+        val size = data.capacity()
+        if (size > capacity) return false
+
+        // slices are never split at the end of the ring
+        var start = buffer.getLong(HEAD)
+        val startInRing = start % capacity
+        if (startInRing + size > capacity) start += capacity - startInRing
+
+        val slot = slotPosition(id)
+        val sequence = buffer.getLong(slot)
+        // odd while being written
+        buffer.putLong(slot, sequence + 1)
+        buffer.putLong(HEAD, start + size)
+        UNSAFE.storeFence()
+
+        val target = buffer.duplicate()
+        val src = data.duplicate()
+        // this cast has to be done to be compatible with JDK 8
+        (target as Buffer).position(dataStart + (start % capacity).toInt())
+        (src as Buffer).clear()
+        target.put(src)
+
+        buffer.putInt(slot + ID, id)
+        buffer.putInt(slot + SIZE, size)
+        buffer.putLong(slot + START, start)
+        buffer.putLong(slot + CREATED, created)
+        UNSAFE.storeFence()
+        buffer.putLong(slot, sequence + 2)
+        return true
+    }
+
+    /**
+     * False once the server closed the ring
+     */
+    val valid: Boolean
+        get() = buffer.getInt(MAGIC_POS) == MAGIC
+
+    /**
+     * Thread safe.
+     *
+     * @return a copy of the slice the caller has to free or null if it is not or no longer in the ring
+     */
+    fun read(id: Int, size: Int, created: Long): ByteBuffer? {
+        if (!valid) return null
+        val slot = slotPosition(id)
+        val sequence = buffer.getLong(slot)
+        UNSAFE.loadFence()
+        if (sequence % 2 != 0L
+            || buffer.getInt(slot + ID) != id
+            || buffer.getInt(slot + SIZE) != size
+            || buffer.getLong(slot + CREATED) != created
+        ) return null
+
+        val start = buffer.getLong(slot + START)
+        val src = buffer.duplicate()
+        val position = dataStart + (start % capacity).toInt()
+        // this cast has to be done to be compatible with JDK 8
+        (src as Buffer).limit(position + size).position(position)
+        val copy = MemoryUtil.memAlloc(size)
+        copy.put(src)
+        (copy as Buffer).flip()
+
+        UNSAFE.loadFence()
+        if (buffer.getLong(slot) != sequence || buffer.getLong(HEAD) - start > capacity) {
+            // overwritten while copying
+            MemoryUtil.memFree(copy)
+            return null
+        }
+        return copy
+    }
+
+    /**
+     * Only for the server. Invalidates the ring for clients and deletes the file. The mapping itself is released by
+     * the garbage collector, clients can keep reading from their own one meanwhile.
+     */
+    fun close() {
+        buffer.putInt(MAGIC_POS, 0)
+        UNSAFE.storeFence()
+        if (!file.delete()) logger.warn("Could not delete shared slice file $file")
+    }
+
+    private fun slotPosition(id: Int) = HEADER_SIZE + Math.floorMod(id, TABLE_SLOTS) * SLOT_SIZE
+
+    companion object {
+        private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+        // plain accesses of the mapped memory may be reordered by the JIT and the CPU, the seqlock needs real fences.
+        // VarHandle.loadFence and storeFence would do, but need JDK 9
+        private val UNSAFE = Unsafe::class.java.getDeclaredField("theUnsafe").let {
+            it.isAccessible = true
+            it.get(null) as Unsafe
+        }
+
+        private const val MAGIC = 0x4d535352 // MSSR
+        private const val VERSION = 1
+        private const val TABLE_SLOTS = 1024
+
+        // header
+        private const val HEADER_SIZE = 64
+        private const val MAGIC_POS = 0
+        private const val VERSION_POS = 4
+        private const val CAPACITY = 8
+        private const val HEAD = 16
+
+        // slot
+        private const val SLOT_SIZE = 32
+        private const val ID = 8
+        private const val SIZE = 12
+        private const val START = 16
+        private const val CREATED = 24
+
+        fun file(basePort: Int) = File(System.getProperty("java.io.tmpdir"), "microscenery-$basePort.slices")
+
+        /**
+         * Called by the server. Reuses the file if it has the right size, since clients might still have it mapped.
+         *
+         * @return null if the file could not be created
+         */
+        fun create(basePort: Int, capacity: Int): SharedSliceRing? {
+            val file = file(basePort)
+            val totalSize = HEADER_SIZE.toLong() + TABLE_SLOTS * SLOT_SIZE + capacity
+            try {
+                if (file.exists() && file.length() != totalSize) file.delete()
+                val buffer = RandomAccessFile(file, "rw").use { raf ->
+                    raf.setLength(totalSize)
+                    raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, totalSize)
+                }
+                buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+                val reused = buffer.getInt(MAGIC_POS) == MAGIC && buffer.getInt(VERSION_POS) == VERSION
+                buffer.putInt(CAPACITY, capacity)
+                // the head only ever grows, readers of the previous run would miss overwrites otherwise
+                if (!reused) buffer.putLong(HEAD, 0)
+                for (slot in 0 until TABLE_SLOTS) {
+                    val position = HEADER_SIZE + slot * SLOT_SIZE
+                    val sequence = buffer.getLong(position)
+                    buffer.putLong(position, sequence + 2 - sequence % 2)
+                    buffer.putInt(position + ID, -1)
+                }
+                buffer.putInt(VERSION_POS, VERSION)
+                buffer.putInt(MAGIC_POS, MAGIC)
+                logger.info("Sharing slices with clients on this host via $file")
+                return SharedSliceRing(buffer, file)
+            } catch (e: IOException) {
+                logger.warn("Could not create shared slice file $file: ${e.message}")
+                return null
+            }
+        }
+
+        /**
+         * Called by clients.
+         *
+         * @return null if there is no valid file for this port
+         */
+        fun open(basePort: Int): SharedSliceRing? {
+            val file = file(basePort)
+            if (!file.exists()) return null
+            return try {
+                val buffer = RandomAccessFile(file, "r").use { raf ->
+                    raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                }
+                buffer.order(ByteOrder.LITTLE_ENDIAN)
+                if (buffer.capacity() < HEADER_SIZE
+                    || buffer.getInt(MAGIC_POS) != MAGIC
+                    || buffer.getInt(VERSION_POS) != VERSION
+                    || buffer.capacity().toLong() != HEADER_SIZE.toLong() + TABLE_SLOTS * SLOT_SIZE + buffer.getInt(CAPACITY)
+                ) return null
+                logger.info("Reading slices from $file")
+                SharedSliceRing(buffer, file)
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        /**
+         * @return true if [host] refers to this machine
+         */
+        fun isLocal(host: String): Boolean = try {
+            val address = InetAddress.getByName(host)
+            address.isLoopbackAddress || address.isAnyLocalAddress || NetworkInterface.getByInetAddress(address) != null
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package microscenery.network
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Several serialized control signals in one ZMQ message.
+ *
+ * A batch starts with [MARKER], which can't start a protobuf message since field number 0 is invalid. It is followed by
+ * each signal as little endian int length and its bytes. A single signal is sent as it is. An empty message is a
+ * heartbeat, see [ControlSignalsServer]. Batches and heartbeats are only sent to peers that know them, see
+ * [microscenery.signals.BaseServerSignal.ServerHello.SIGNAL_BATCHES].
+ *
+ * Batching never waits for more signals. A batch holds what has piled up since the last send, closed at
+ * [MAX_BATCH_BYTES] so a large backlog doesn't hold back its first signal.
+ */
+internal object SignalBatch {
+    const val MARKER: Byte = 0
+
+    /** Payload bytes after which a batch is closed. A single larger signal is sent on its own. */
+    const val MAX_BATCH_BYTES = 64 * 1024
+
+    /**
+     * Calls [action] with a view of each signal in [message], which may be a batch or a single signal.
+     */
+    inline fun forEachSignal(message: ByteArray, action: (ByteBuffer) -> Unit) {
+        if (message.isEmpty()) return
+        if (message[0] != MARKER) {
+            action(ByteBuffer.wrap(message))
+            return
+        }
+        val buffer = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN)
+        var position = 1
+        while (position + 4 <= message.size) {
+            val length = buffer.getInt(position)
+            position += 4
+            if (length < 0 || position + length > message.size) {
+                throw IllegalArgumentException("Malformed signal batch")
+            }
+            action(ByteBuffer.wrap(message, position, length).slice())
+            position += length
+        }
+    }
+
+    /**
+     * Collects signals for one message. Not thread safe.
+     */
+    class Builder {
+        private val signals = ArrayList<ByteArray>()
+        private var bytes = 0
+
+        fun isEmpty() = signals.isEmpty()
+
+        /**
+         * @return false if the batch is full, [signal] is not added then. The first signal is always taken.
+         */
+        fun offer(signal: ByteArray): Boolean {
+            if (signals.isNotEmpty() && bytes + signal.size > MAX_BATCH_BYTES) return false
+            signals += signal
+            bytes += signal.size
+            return true
+        }
+
+        /**
+         * @return the message and starts a new batch
+         */
+        fun build(): ByteArray {
+            val message = if (signals.size == 1) {
+                signals[0]
+            } else {
+                val buffer = ByteBuffer.allocate(1 + signals.size * 4 + bytes).order(ByteOrder.LITTLE_ENDIAN)
+                buffer.put(MARKER)
+                signals.forEach { buffer.putInt(it.size).put(it) }
+                buffer.array()
+            }
+            signals.clear()
+            bytes = 0
+            return message
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Decodes received control messages and hands the signals to the listeners, off the network thread of
+ * [ControlSignalsServer] and [ControlSignalsClient]. Their network threads only move bytes.
+ *
+ * Decoding and each listener are run one after the other on a pool of [WORKERS] threads, see [SerialQueue]. Every
+ * listener gets all signals in the order they were received, one at a time. Listeners don't wait for each other, but a
+ * listener whose queue of [capacity] signals is full holds back the decoding and thereby everyone. Once the
+ * [capacity] messages in front of the decoding are full too, the network thread stops reading until there is space.
+ * It keeps sending meanwhile.
+ *
+ * If a [sharedExecutor] is given, e.g. one of [newPool] for all connections of a process, it is used instead of an own
+ * pool and not shut down on [close].
+ */
+internal class SignalDispatcher<T>(
+    name: String,
+    private val capacity: Int = 1000,
+    private val sharedExecutor: Executor? = null,
+    private val decode: (ByteBuffer) -> T
+) {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    private val executor: Executor = sharedExecutor ?: newPool(name)
+
+    // stops a shared executor from running what is still queued
+    @Volatile
+    private var closed = false
+
+    // received messages and already decoded signals, see [dispatch]
+    private val messages = SerialQueue<Any>(executor, capacity) { element ->
+        if (closed) return@SerialQueue
+        @Suppress("UNCHECKED_CAST")
+        if (element is ByteArray) decodeMessage(element) else dispatchDecoded((element as Decoded<T>).signal)
+    }
+    private val listeners = CopyOnWriteArrayList<SerialQueue<Decoded<T>>>()
+
+    private val stalls = AtomicLong()
+    private val stalledNanos = AtomicLong()
+
+    val status: DispatchStatus
+        get() = DispatchStatus(
+            messages.size, listeners.map { it.size }, stalls.get(), stalledNanos.get() / 1_000_000
+        )
+
+    fun addListener(listener: (T) -> Unit) {
+        listeners += SerialQueue<Decoded<T>>(executor, capacity) {
+            if (closed) return@SerialQueue
+            try {
+                listener(it.signal)
+            } catch (e: Exception) {
+                logger.error("Listener failed on ${it.signal}", e)
+            }
+        }
+    }
+
+    /**
+     * Called by the network thread.
+     *
+     * @return false if too many messages are waiting to be decoded, [message] is not taken then
+     */
+    fun offer(message: ByteArray): Boolean = messages.offer(message)
+
+    /**
+     * Waits up to [timeoutMillis] for space.
+     */
+    fun offer(message: ByteArray, timeoutMillis: Long): Boolean = messages.offer(message, timeoutMillis)
+
+    /**
+     * Hands an already decoded signal to all listeners, after the signals received so far. Blocks while the queue is
+     * full.
+     */
+    fun dispatch(signal: T) = messages.put(Decoded(signal))
+
+    private fun decodeMessage(message: ByteArray) {
+        try {
+            SignalBatch.forEachSignal(message) { dispatchDecoded(decode(it)) }
+        } catch (e: Exception) {
+            logger.error("Could not decode message of ${message.size} bytes", e)
+        }
+    }
+
+    private fun dispatchDecoded(signal: T) {
+        val decoded = Decoded(signal)
+        listeners.forEach { listener ->
+            if (listener.offer(decoded)) return@forEach
+            // the listener is behind, everyone waits for it
+            val start = System.nanoTime()
+            stalls.incrementAndGet()
+            listener.put(decoded)
+            stalledNanos.addAndGet(System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Queued signals are not handed over anymore. A listener that is running is not interrupted, it may be the one
+     * closing the connection.
+     */
+    fun close() {
+        closed = true
+        if (sharedExecutor == null) (executor as ExecutorService).shutdown()
+    }
+
+    private class Decoded<T>(val signal: T)
+
+    /**
+     * Runs [handler] for the queued elements on [executor], one after the other. Only one task is submitted at a
+     * time, it handles up to [BATCH] elements before it makes room for others.
+     */
+    private class SerialQueue<E : Any>(
+        private val executor: Executor,
+        capacity: Int,
+        private val handler: (E) -> Unit
+    ) {
+        private val queue = ArrayBlockingQueue<E>(capacity)
+        private val scheduled = AtomicBoolean(false)
+
+        val size: Int
+            get() = queue.size
+
+        fun offer(element: E): Boolean {
+            if (!queue.offer(element)) return false
+            schedule()
+            return true
+        }
+
+        fun offer(element: E, timeoutMillis: Long): Boolean {
+            if (!queue.offer(element, timeoutMillis, TimeUnit.MILLISECONDS)) return false
+            schedule()
+            return true
+        }
+
+        fun put(element: E) {
+            // a pool of [newPool] adds a thread meanwhile, so the queue it waits for can still be drained
+            ForkJoinPool.managedBlock(object : ForkJoinPool.ManagedBlocker {
+                private var done = false
+
+                override fun isReleasable(): Boolean {
+                    if (!done) done = queue.offer(element)
+                    return done
+                }
+
+                override fun block(): Boolean {
+                    if (!done) queue.put(element)
+                    done = true
+                    return true
+                }
+            })
+            schedule()
+        }
+
+        private fun schedule() {
+            if (!scheduled.compareAndSet(false, true)) return
+            try {
+                executor.execute(::drain)
+            } catch (_: RejectedExecutionException) {
+                // closed, nothing is dispatched anymore
+            }
+        }
+
+        private fun drain() {
+            try {
+                for (i in 0 until BATCH) {
+                    handler(queue.poll() ?: break)
+                }
+            } finally {
+                scheduled.set(false)
+            }
+            // an element that came after the last poll could not schedule another run
+            if (queue.isNotEmpty()) schedule()
+        }
+    }
+
+    companion object {
+        /** Threads shared by decoding and all listeners */
+        const val WORKERS = 4
+
+        /**
+         * @return a pool of [threads] daemon threads to run dispatchers on. It only grows while threads wait for a
+         * listener that is behind, so dispatchers can share it without blocking each other for good.
+         */
+        fun newPool(name: String, threads: Int = WORKERS): ExecutorService {
+            val count = AtomicInteger()
+            val factory = ForkJoinPool.ForkJoinWorkerThreadFactory { pool ->
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool).apply {
+                    this.name = "$name dispatch ${count.incrementAndGet()}"
+                }
+            }
+            // async mode runs tasks in the order they were submitted
+            return ForkJoinPool(threads, factory, null, true)
+        }
+
+        /** Elements handled in one go before the thread is handed to the next queue */
+        const val BATCH = 64
+    }
+}
+
+/**
+ * @param pendingMessages received messages waiting to be decoded
+ * @param listenerQueueDepths signals waiting for each listener
+ * @param stalls number of times decoding had to wait for a listener with a full queue
+ * @param stalledMillis time spent waiting for such listeners
+ */
+data class DispatchStatus(
+    val pendingMessages: Int,
+    val listenerQueueDepths: List<Int>,
+    val stalls: Long,
+    val stalledMillis: Long
+)
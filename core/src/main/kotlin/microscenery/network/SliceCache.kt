@@ -0,0 +1,197 @@
+package microscenery.network
+
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import microscenery.signals.Slice
+import org.lwjgl.system.MemoryUtil
+import java.io.File
+import java.nio.ByteBuffer
+
+/**
+ * Client side copies of received slice data, so a [SliceRequester] that sees a slice again, e.g. after a reconnect,
+ * or another [SliceRequester] in the same process doesn't fetch it over the network again.
+ *
+ * Slices are identified by their server, id, creation time and size since ids repeat across server runs. Up to
+ * [maxMemorySize] bytes are kept in memory, the least recently used slices are evicted beyond that. If a [diskStore]
+ * is given, evicted slices are written to it and served from there until it drops them.
+ *
+ * The cache keeps its own copies. Slices are copied in on [put] and out on [get], the caller owns the buffers.
+ *
+ * Thread safe.
+ */
+class SliceCache(
+    val maxMemorySize: Long,
+    val diskStore: SliceSpillStore? = null
+) {
+    // guards everything below
+    private val lock = Any()
+
+    // in access order, the eldest entry is the least recently used one
+    private val memory = LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true)
+    private var memoryBytes = 0L
+
+    // slices evicted to disk and their id in [diskStore], in access order
+    private val onDisk = LinkedHashMap<Key, Int>(16, 0.75f, true)
+    private var nextDiskId = 0
+
+    // evicted slices that are still being written, by disk id
+    private val writing = HashMap<Int, ByteBuffer>()
+
+    /** Number of slices found by [get] */
+    @Volatile
+    var hits = 0L
+        private set
+
+    /** Number of slices found on disk by [get] */
+    @Volatile
+    var diskHits = 0L
+        private set
+
+    /** Number of slices not found by [get] */
+    @Volatile
+    var misses = 0L
+        private set
+
+    /**
+     * Copies the [ByteBuffer.remaining] bytes of [data]. Slices larger than [maxMemorySize] are not cached.
+     */
+    fun put(server: String, slice: Slice, data: ByteBuffer) {
+        val size = data.remaining()
+        if (size != slice.size || size > maxMemorySize) return
+        val copy = MemoryUtil.memAlloc(size)
+        MemoryUtil.memCopy(data.duplicate(), copy)
+
+        synchronized(lock) {
+            val key = Key(server, slice)
+            memory.put(key, copy)?.let {
+                memoryBytes -= it.capacity()
+                MemoryUtil.memFree(it)
+            }
+            onDisk.remove(key)?.let { diskStore?.remove(it) }
+            memoryBytes += size
+            while (memoryBytes > maxMemorySize) evictEldest()
+        }
+    }
+
+    /**
+     * @return a copy of the data of [slice] or null if it is not cached
+     */
+    fun get(server: String, slice: Slice): ByteBuffer? = synchronized(lock) {
+        val key = Key(server, slice)
+        val data = memory[key] ?: readFromDisk(key)
+        if (data == null) {
+            misses++
+            return null
+        }
+        hits++
+        val copy = MemoryUtil.memAlloc(data.remaining())
+        MemoryUtil.memCopy(data.duplicate(), copy)
+        copy
+    }
+
+    private fun evictEldest() {
+        val eldest = memory.entries.first()
+        memory.remove(eldest.key)
+        val data = eldest.value
+        memoryBytes -= data.capacity()
+
+        val diskStore = diskStore
+        if (diskStore == null) {
+            MemoryUtil.memFree(data)
+            return
+        }
+        val diskId = nextDiskId++
+        onDisk[eldest.key] = diskId
+        writing[diskId] = data
+        if (onDisk.size > MAX_DISK_ENTRIES) {
+            val dropped = onDisk.entries.first()
+            onDisk.remove(dropped.key)
+            diskStore.remove(dropped.value)
+        }
+        diskStore.spill(diskId, data) {
+            synchronized(lock) {
+                writing.remove(diskId)
+            }
+            MemoryUtil.memFree(data)
+        }
+    }
+
+    /**
+     * Copies out of [diskStore] right away, so its segment is released again.
+     */
+    private fun readFromDisk(key: Key): ByteBuffer? {
+        val diskId = onDisk[key] ?: return null
+        writing[diskId]?.let { return it }
+        val (data, release) = diskStore?.acquire(diskId) ?: run {
+            // the disk store made room for newer slices
+            onDisk.remove(key)
+            return null
+        }
+        diskHits++
+        val copy = MemoryUtil.memAlloc(data.remaining())
+        try {
+            MemoryUtil.memCopy(data, copy)
+        } finally {
+            release()
+        }
+        return copy.also { keepInMemory(key, it) }
+    }
+
+    /**
+     * Takes over [data], which was read from disk, as the memory copy of [key].
+     */
+    private fun keepInMemory(key: Key, data: ByteBuffer) {
+        onDisk.remove(key)?.let { diskStore?.remove(it) }
+        memory[key] = data
+        memoryBytes += data.capacity()
+        // the slice itself is the most recently used one and stays
+        while (memoryBytes > maxMemorySize && memory.size > 1) evictEldest()
+    }
+
+    /**
+     * Frees the cached data. Only to be called once no one uses the cache anymore.
+     */
+    fun close() {
+        diskStore?.close()
+        synchronized(lock) {
+            memory.values.forEach { MemoryUtil.memFree(it) }
+            memory.clear()
+            memoryBytes = 0
+            onDisk.clear()
+        }
+    }
+
+    private data class Key(val server: String, val id: Int, val created: Long, val size: Int) {
+        constructor(server: String, slice: Slice) : this(server, slice.Id, slice.created, slice.size)
+    }
+
+    companion object {
+        /** Disk entries that are remembered at most, the disk store usually drops slices long before */
+        private const val MAX_DISK_ENTRIES = 100_000
+
+        private var shared: SliceCache? = null
+        private var sharedCreated = false
+
+        /**
+         * The cache shared by all [SliceRequester]s of this process.
+         *
+         * @return null if caching is disabled, see [Settings.Network.ClientCacheSizeMb]
+         */
+        @Synchronized
+        fun shared(): SliceCache? {
+            if (sharedCreated) return shared
+            sharedCreated = true
+
+            val sizeMb = MicroscenerySettings.get(Settings.Network.ClientCacheSizeMb, 0)
+            if (sizeMb <= 0) return null
+            val diskMb = MicroscenerySettings.get(Settings.Network.ClientCacheDiskMb, 0)
+            val diskStore = if (diskMb > 0) {
+                val directory = MicroscenerySettings.get(Settings.Network.ClientCacheDirectory, "")
+                    .ifBlank { File(System.getProperty("java.io.tmpdir"), "microscenery-client-cache").path }
+                SliceSpillStore(File(directory), diskMb * 1024L * 1024L)
+            } else null
+            shared = SliceCache(sizeMb * 1024L * 1024L, diskStore)
+            return shared
+        }
+    }
+}
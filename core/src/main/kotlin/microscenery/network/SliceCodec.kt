@@ -0,0 +1,236 @@
+package microscenery.network
+
+import microscenery.signals.NumericType
+import org.lwjgl.system.MemoryUtil
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/** Slices are encoded in independent blocks of this many raw bytes. Only block aligned chunks can be sent encoded. */
+const val CODEC_BLOCK_SIZE = 64 * 1024
+
+/** Codec id for data that is sent as it is */
+const val RAW_CODEC = 0
+
+/**
+ * Lossless encoding of slice data.
+ *
+ * Blocks of up to [CODEC_BLOCK_SIZE] raw bytes are encoded independently of each other. Therefore, any block aligned
+ * range of a slice can be sent and decoded on its own. An encoded block has to be self delimiting, so a sequence of
+ * them can be decoded knowing only the raw size of the range.
+ */
+interface SliceCodec {
+    /** 1..31, unique. Used in [ChunkRequestExtension.acceptedCodecs] and [ChunkReplyExtension.codec]. */
+    val id: Int
+
+    /** Encodes the remaining bytes of [src] into [dst] and advances both. Must not write more than one extra byte. */
+    fun encodeBlock(src: ByteBuffer, dst: ByteBuffer)
+
+    /** Decodes one block from [src] until [dst] is full and advances both. */
+    fun decodeBlock(src: ByteBuffer, dst: ByteBuffer)
+}
+
+/**
+ * A slice encoded with [codec] once, when it is stored. Owns the off-heap buffer [data].
+ *
+ * @param blockOffsets position of each block in [data] followed by the end of the last block
+ */
+class EncodedSlice(val codec: SliceCodec, val rawSize: Int, val data: ByteBuffer, private val blockOffsets: IntArray) {
+
+    /**
+     * @return a view of the encoded blocks that exactly cover the raw range or null if the range is not block aligned
+     */
+    fun encodedRange(rawOffset: Int, rawLength: Int): ByteBuffer? {
+        val rawEnd = rawOffset + rawLength
+        if (rawOffset % CODEC_BLOCK_SIZE != 0 || (rawEnd % CODEC_BLOCK_SIZE != 0 && rawEnd != rawSize)) return null
+        if (rawOffset < 0 || rawEnd > rawSize) return null
+
+        val firstBlock = rawOffset / CODEC_BLOCK_SIZE
+        val endBlock = (rawEnd + CODEC_BLOCK_SIZE - 1) / CODEC_BLOCK_SIZE
+        val view = data.duplicate()
+        // this cast has to be done to be compatible with JDK 8
+        (view as Buffer).limit(blockOffsets[endBlock]).position(blockOffsets[firstBlock])
+        return view
+    }
+}
+
+object SliceCodecs {
+    val all: List<SliceCodec> = listOf(DeltaBitPackCodec)
+
+    /** Bit mask of all codecs this build can decode */
+    val allIds = all.fold(0) { mask, codec -> mask or (1 shl codec.id) }
+
+    fun byId(id: Int): SliceCodec? = all.firstOrNull { it.id == id }
+
+    /**
+     * @return the codec that suits data of [numericType] or null if it should be stored raw
+     */
+    fun forType(numericType: NumericType): SliceCodec? = when (numericType) {
+        NumericType.INT16 -> DeltaBitPackCodec
+        NumericType.INT8 -> null
+    }
+
+    /**
+     * Encodes the whole buffer [raw] block by block. Position and limit of [raw] are ignored.
+     *
+     * @return null if encoding does not save anything
+     */
+    fun encode(codec: SliceCodec, raw: ByteBuffer): EncodedSlice? {
+        val rawSize = raw.capacity()
+        if (rawSize == 0) return null
+        val blocks = (rawSize + CODEC_BLOCK_SIZE - 1) / CODEC_BLOCK_SIZE
+        val blockOffsets = IntArray(blocks + 1)
+        val encoded = MemoryUtil.memAlloc(rawSize + blocks)
+
+        val src = raw.duplicate()
+        for (block in 0 until blocks) {
+            blockOffsets[block] = encoded.position()
+            // this cast has to be done to be compatible with JDK 8
+            (src as Buffer).limit(minOf(rawSize, (block + 1) * CODEC_BLOCK_SIZE)).position(block * CODEC_BLOCK_SIZE)
+            codec.encodeBlock(src, encoded)
+            if (encoded.position() >= rawSize) {
+                MemoryUtil.memFree(encoded)
+                return null
+            }
+        }
+        val encodedSize = encoded.position()
+        blockOffsets[blocks] = encodedSize
+
+        val data = MemoryUtil.memRealloc(encoded, encodedSize)
+        (data as Buffer).clear()
+        return EncodedSlice(codec, rawSize, data, blockOffsets)
+    }
+
+    /**
+     * Decodes consecutive blocks from [src] until [dst] is full. [dst] has to start at a block border.
+     */
+    fun decode(codec: SliceCodec, src: ByteBuffer, dst: ByteBuffer) {
+        val end = dst.limit()
+        while (dst.position() < end) {
+            // this cast has to be done to be compatible with JDK 8
+            (dst as Buffer).limit(minOf(end, dst.position() + CODEC_BLOCK_SIZE))
+            codec.decodeBlock(src, dst)
+        }
+        (dst as Buffer).limit(end)
+    }
+}
+
+/**
+ * For 16 bit little endian images. Neighbouring pixels mostly differ only by a little, especially in the dark
+ * background. Each pixel is stored as zigzag encoded difference to its predecessor. The differences are bit packed in
+ * groups of [GROUP_SIZE] with the bit width of the largest one in the group.
+ *
+ * Block layout: one mode byte. [MODE_STORED] is followed by the raw bytes. [MODE_PACKED] is followed by groups, each
+ * consisting of a bit width byte and the packed differences, least significant bit first.
+ */
+object DeltaBitPackCodec : SliceCodec {
+    override val id = 1
+
+    private const val MODE_STORED: Byte = 0
+    private const val MODE_PACKED: Byte = 1
+    private const val GROUP_SIZE = 128
+
+    override fun encodeBlock(src: ByteBuffer, dst: ByteBuffer) {
+        val rawSize = src.remaining()
+        val start = dst.position()
+
+        // packed blocks can't be larger than stored ones, otherwise the block is stored after all
+        if (rawSize % 2 == 0 && dst.remaining() > rawSize) {
+            dst.put(MODE_PACKED)
+            if (pack(src.duplicate().order(ByteOrder.LITTLE_ENDIAN), dst, start + rawSize + 1)) {
+                // this cast has to be done to be compatible with JDK 8
+                (src as Buffer).position(src.limit())
+                return
+            }
+            (dst as Buffer).position(start)
+        }
+        dst.put(MODE_STORED)
+        dst.put(src)
+    }
+
+    /**
+     * @return false if the packed data would reach [maxEnd]
+     */
+    private fun pack(src: ByteBuffer, dst: ByteBuffer, maxEnd: Int): Boolean {
+        val samples = src.remaining() / 2
+        val base = src.position()
+        val zigzags = IntArray(GROUP_SIZE)
+        var previous = 0
+        var i = 0
+        while (i < samples) {
+            val n = minOf(GROUP_SIZE, samples - i)
+            var allBits = 0
+            for (k in 0 until n) {
+                val value = src.getShort(base + 2 * (i + k)).toInt() and 0xFFFF
+                val delta = (value - previous).toShort().toInt()
+                previous = value
+                val zigzag = (delta shl 1) xor (delta shr 31)
+                zigzags[k] = zigzag
+                allBits = allBits or zigzag
+            }
+            val width = 32 - Integer.numberOfLeadingZeros(allBits)
+            if (dst.position() + 1 + (n * width + 7) / 8 >= maxEnd) return false
+
+            dst.put(width.toByte())
+            var bits = 0L
+            var bitCount = 0
+            for (k in 0 until n) {
+                bits = bits or (zigzags[k].toLong() shl bitCount)
+                bitCount += width
+                while (bitCount >= 8) {
+                    dst.put(bits.toByte())
+                    bits = bits ushr 8
+                    bitCount -= 8
+                }
+            }
+            if (bitCount > 0) dst.put(bits.toByte())
+            i += n
+        }
+        return true
+    }
+
+    override fun decodeBlock(src: ByteBuffer, dst: ByteBuffer) {
+        when (val mode = src.get()) {
+            MODE_STORED -> {
+                val stored = src.duplicate()
+                // this cast has to be done to be compatible with JDK 8
+                (stored as Buffer).limit(stored.position() + dst.remaining())
+                dst.put(stored)
+                (src as Buffer).position(stored.position())
+            }
+
+            MODE_PACKED -> {
+                val out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                unpack(src, out, dst.remaining() / 2)
+                (dst as Buffer).position(out.position())
+            }
+
+            else -> throw IllegalArgumentException("Unknown block mode $mode")
+        }
+    }
+
+    private fun unpack(src: ByteBuffer, dst: ByteBuffer, samples: Int) {
+        var previous = 0
+        var i = 0
+        while (i < samples) {
+            val n = minOf(GROUP_SIZE, samples - i)
+            val width = src.get().toInt() and 0xFF
+            val mask = (1L shl width) - 1
+            var bits = 0L
+            var bitCount = 0
+            for (k in 0 until n) {
+                while (bitCount < width) {
+                    bits = bits or ((src.get().toLong() and 0xFF) shl bitCount)
+                    bitCount += 8
+                }
+                val zigzag = (bits and mask).toInt()
+                bits = bits ushr width
+                bitCount -= width
+                val delta = (zigzag ushr 1) xor -(zigzag and 1)
+                previous = (previous + delta) and 0xFFFF
+                dst.putShort(previous.toShort())
+            }
+            i += n
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import microscenery.Agent
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import microscenery.signals.BaseServerSignal.Companion.toPoko
+import microscenery.signals.Slice
+import org.lwjgl.system.MemoryUtil
+import org.zeromq.SocketType
+import org.zeromq.ZContext
+import org.zeromq.ZMQ
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Subscribes to a [SlicePushServer] and receives every slice it streams.
+ *
+ * [onSlice] is executed by the network thread for each received slice. The responsibility to free its data is handed
+ * over with it. Call [returnCredit] once a slice is processed to receive further ones. At most [credits] slices are
+ * sent ahead. Credits returned from within [onSlice] are handed back right away, others with the next loop. If no
+ * credits are returned for [ControlSignalsServer.HEARTBEAT_INTERVAL_MS], zero credits are granted to stay subscribed.
+ */
+class SlicePushClient(
+    zContext: ZContext,
+    port: Int,
+    host: String = "localhost",
+    val credits: Int = MicroscenerySettings.get(Settings.Network.PushCredits, 2),
+    private val onSlice: (Slice) -> Unit
+) : Agent() {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    private val dealer: ZMQ.Socket = zContext.createSocket(SocketType.DEALER)
+
+    // credits to be handed back by the agent thread since the socket is not thread safe
+    private val creditsToReturn = AtomicInteger(credits)
+
+    private var lastSent = 0L
+
+    init {
+        dealer.receiveTimeOut = 200
+        dealer.connect("tcp://$host:$port")
+        logger.info("${SlicePushClient::class.simpleName} connected to tcp://$host:$port")
+        startAgent()
+    }
+
+    /**
+     * Thread safe.
+     */
+    fun returnCredit() {
+        creditsToReturn.incrementAndGet()
+    }
+
+    override fun onLoop() {
+        val returned = creditsToReturn.getAndSet(0)
+        val now = System.currentTimeMillis()
+        // no credits granted as heartbeat
+        if (returned > 0 || now - lastSent >= ControlSignalsServer.HEARTBEAT_INTERVAL_MS) {
+            dealer.send(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(returned).array())
+            lastSent = now
+        }
+
+        val header = dealer.recv() ?: return
+        if (!dealer.hasReceiveMore()) {
+            logger.warn("Got pushed slice header without data.")
+            returnCredit()
+            return
+        }
+        val slice = org.withXR.network.v3.BaseServerSignal.parseFrom(header).toPoko() as? Slice
+        if (slice == null) {
+            logger.warn("Got pushed message that is not a slice.")
+            dealer.recv()
+            returnCredit()
+            return
+        }
+
+        val data = MemoryUtil.memAlloc(slice.size)
+        dealer.recvByteBuffer(data, 0)
+        // this cast has to be done to be compatible with JDK 8
+        (data as Buffer).rewind()
+        onSlice(slice.copy(data = data))
+    }
+
+    override fun onClose() {
+        dealer.linger = 0
+        dealer.close()
+    }
+}
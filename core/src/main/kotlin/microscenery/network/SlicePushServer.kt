@@ -0,0 +1,151 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import microscenery.Agent
+import microscenery.signals.Slice
+import org.zeromq.SocketType
+import org.zeromq.ZContext
+import org.zeromq.ZError
+import org.zeromq.ZMQ
+import org.zeromq.ZMQException
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/** Push sockets are bound at the base port plus this offset */
+const val PUSH_PORT_OFFSET = 100
+
+/**
+ * Streams slices to subscribed [SlicePushClient]s without waiting for their requests.
+ *
+ * Clients grant credits, one per slice they are ready to take. A slice is only sent to clients with credits left, the
+ * others skip it and can fetch it via [BiggishDataServer] if they still want it. Slices that pile up because this
+ * agent is behind are dropped oldest first.
+ *
+ * Each pushed message is the [Slice] signal without data followed by the slice data.
+ * Credit messages of clients are a little endian int. Clients grant zero credits as heartbeat, see
+ * [ControlSignalsServer.HEARTBEAT_INTERVAL_MS]. Clients not heard from for [ControlSignalsServer.CLIENT_TIMEOUT_MS] or
+ * gone from the socket are forgotten.
+ */
+class SlicePushServer(val port: Int, host: String, zContext: ZContext) : Agent() {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    private val router: ZMQ.Socket = zContext.createSocket(SocketType.ROUTER)
+
+    private val pending = ArrayBlockingQueue<PendingPush>(4)
+
+    // by client identity. ByteBuffers compare by content.
+    private val subscribers = HashMap<ByteBuffer, Subscriber>()
+
+    private val zeroCopy = ZeroCopySender()
+
+    init {
+        // report full and vanished clients instead of silently dropping
+        router.setRouterMandatory(true)
+        val adr = "tcp://${host}:${port}"
+        router.bind(adr)
+        logger.info("${SlicePushServer::class.simpleName} bound to $adr")
+        startAgent()
+    }
+
+    /**
+     * Thread safe. [slice] is sent from the data of [lease], which is closed once it is not needed anymore.
+     */
+    fun push(slice: Slice, lease: SliceStorage.SliceLease) {
+        val push = PendingPush(slice.copy(data = null), lease)
+        while (!pending.offer(push)) {
+            pending.poll()?.let {
+                logger.debug("Not pushing slice ${it.slice.Id}, too many pending.")
+                it.lease.close()
+            }
+        }
+    }
+
+    override fun onLoop() {
+        zeroCopy.reclaim()
+        val push = pending.poll(200, TimeUnit.MILLISECONDS)
+        // take the newest credits into account before deciding who gets the slice
+        receiveCredits()
+        prune()
+        push ?: return
+
+        val header = push.slice.toProto().toByteArray()
+        // held by this loop until all sends are started
+        var users = 1
+        val release = { if (--users == 0) push.lease.close() }
+        val iterator = subscribers.values.iterator()
+        while (iterator.hasNext()) {
+            val client = iterator.next()
+            if (client.credits <= 0) continue
+            try {
+                // EAGAIN: the pipe to this client is full, it skips this slice
+                if (!router.send(client.identity, ZMQ.SNDMORE or ZMQ.DONTWAIT)) continue
+            } catch (e: ZMQException) {
+                // other errors than EAGAIN are thrown
+                if (e.errorCode != ZError.EHOSTUNREACH) throw e
+                logger.info("Push subscriber ${client.name} disconnected.")
+                iterator.remove()
+                continue
+            }
+            client.credits--
+
+            val view = push.lease.data.duplicate()
+            // this cast has to be done to be compatible with JDK 8
+            (view as Buffer).clear()
+            // the pipe has been checked with the identity frame already
+            router.send(header, ZMQ.SNDMORE or ZMQ.DONTWAIT)
+            users++
+            zeroCopy.send(router, view, ZMQ.DONTWAIT, release)
+        }
+        release()
+    }
+
+    private fun receiveCredits() {
+        val now = System.currentTimeMillis()
+        while (true) {
+            val identity = router.recv(ZMQ.DONTWAIT) ?: return
+            if (!router.hasReceiveMore()) continue
+            val grant = ByteBuffer.wrap(router.recv()).order(ByteOrder.LITTLE_ENDIAN)
+            if (grant.remaining() < 4) continue
+
+            val client = subscribers.getOrPut(ByteBuffer.wrap(identity)) {
+                Subscriber(identity).also { logger.info("New push subscriber ${it.name}.") }
+            }
+            client.lastSeen = now
+            client.credits += grant.int
+        }
+    }
+
+    private fun prune() {
+        val now = System.currentTimeMillis()
+        val iterator = subscribers.values.iterator()
+        while (iterator.hasNext()) {
+            val client = iterator.next()
+            if (now - client.lastSeen > ControlSignalsServer.CLIENT_TIMEOUT_MS) {
+                logger.info("Push subscriber ${client.name} timed out.")
+                iterator.remove()
+            }
+        }
+    }
+
+    override fun onClose() {
+        while (true) {
+            pending.poll()?.lease?.close() ?: break
+        }
+        router.linger = 0
+        router.close()
+        zeroCopy.reclaim()
+    }
+
+    private class PendingPush(val slice: Slice, val lease: SliceStorage.SliceLease)
+
+    private class Subscriber(val identity: ByteArray) {
+        var credits = 0
+        var lastSeen = System.currentTimeMillis()
+
+        val name: String
+            get() = identity.joinToString("") { "%02x".format(it) }
+    }
+}
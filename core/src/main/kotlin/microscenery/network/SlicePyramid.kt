@@ -0,0 +1,88 @@
+package microscenery.network
+
+import microscenery.signals.ImageMeta
+import microscenery.signals.NumericType
+import org.joml.Vector2i
+import org.lwjgl.system.MemoryUtil
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Downsampled versions of a slice to show something while the full resolution is still being fetched.
+ *
+ * Level n is 2^n times smaller in each dimension, rounded up. Each pixel is the mean of the 2x2 pixels of the level
+ * below, pixels at odd borders are repeated. Values are unsigned and little endian, like for [SliceCodecs].
+ */
+object SlicePyramid {
+    /** Number of downsampled levels, level 0 is the slice itself */
+    const val LEVELS = 2
+
+    fun levelSize(imageSize: Vector2i, level: Int) = Vector2i(dimension(imageSize.x, level), dimension(imageSize.y, level))
+
+    fun levelBytes(imageMeta: ImageMeta, level: Int): Int {
+        val size = levelSize(imageMeta.imageSize, level)
+        return size.x * size.y * imageMeta.numericType.bytes
+    }
+
+    /**
+     * Image meta of a level. A pixel covers 2^level times the distance.
+     */
+    fun levelMeta(imageMeta: ImageMeta, level: Int) = imageMeta.copy(
+        imageSize = levelSize(imageMeta.imageSize, level),
+        vertexDiameter = imageMeta.vertexDiameter * (1 shl level)
+    )
+
+    /**
+     * Position and limit of [data] are ignored.
+     *
+     * @return levels 1 to [LEVELS] in off-heap buffers the caller has to free. Empty if [data] is too small.
+     */
+    fun build(data: ByteBuffer, imageSize: Vector2i, numericType: NumericType): List<ByteBuffer> {
+        if (imageSize.x <= 0 || imageSize.y <= 0
+            || data.capacity() < imageSize.x.toLong() * imageSize.y * numericType.bytes
+        ) return emptyList()
+
+        val levels = ArrayList<ByteBuffer>(LEVELS)
+        var source = data
+        var width = imageSize.x
+        var height = imageSize.y
+        for (level in 1..LEVELS) {
+            source = downsample(source, width, height, numericType)
+            levels += source
+            width = dimension(width, 1)
+            height = dimension(height, 1)
+        }
+        return levels
+    }
+
+    private fun downsample(src: ByteBuffer, width: Int, height: Int, numericType: NumericType): ByteBuffer {
+        val targetWidth = dimension(width, 1)
+        val targetHeight = dimension(height, 1)
+        val bytes = numericType.bytes
+        val source = src.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        val target = MemoryUtil.memAlloc(targetWidth * targetHeight * bytes).order(ByteOrder.LITTLE_ENDIAN)
+
+        fun value(x: Int, y: Int): Int = when (numericType) {
+            NumericType.INT8 -> source.get(y * width + x).toInt() and 0xFF
+            NumericType.INT16 -> source.getShort((y * width + x) * 2).toInt() and 0xFFFF
+        }
+
+        for (y in 0 until targetHeight) {
+            val y0 = y * 2
+            val y1 = (y0 + 1).coerceAtMost(height - 1)
+            for (x in 0 until targetWidth) {
+                val x0 = x * 2
+                val x1 = (x0 + 1).coerceAtMost(width - 1)
+                val mean = (value(x0, y0) + value(x1, y0) + value(x0, y1) + value(x1, y1) + 2) / 4
+                val index = y * targetWidth + x
+                when (numericType) {
+                    NumericType.INT8 -> target.put(index, mean.toByte())
+                    NumericType.INT16 -> target.putShort(index * 2, mean.toShort())
+                }
+            }
+        }
+        return target
+    }
+
+    private fun dimension(size: Int, level: Int) = (size + (1 shl level) - 1) shr level
+}
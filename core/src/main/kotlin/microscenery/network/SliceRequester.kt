@@ -3,10 +3,19 @@ package microscenery.network
 import fromScenery.lazyLogger
 import kotlinx.event.event
 import microscenery.Agent
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import microscenery.network.BiggishDataClient.SliceChunkCollector
+import microscenery.network.BiggishDataClient.StackRange
 import microscenery.signals.BaseServerSignal
 import microscenery.signals.Slice
+import microscenery.signals.Stack
+import org.joml.Vector3f
 import org.lwjgl.system.MemoryUtil
+import java.nio.Buffer
+import java.util.TreeMap
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.TimeUnit
 
 /**
@@ -15,21 +24,142 @@ import java.util.concurrent.TimeUnit
  *
  * All [BaseServerSignal]s are piped though untouched except [Slice] signals. Those are cached and their data is requested.
  * Once the data is there they also get piped downstream together with their data.
+ *
+ * Slices of stacks are fetched with [SliceRequestPriority.BACKFILL]. While in [liveMode] all other slices are fetched
+ * with [SliceRequestPriority.LIVE] and each one cancels the download of the previous one. If [liveDelta] is set too,
+ * they are fetched as difference to the previous live slice, see [FrameDelta].
+ *
+ * If [pushSlices] is set, slices streamed by the server via [SlicePushClient] are piped downstream as soon as they
+ * arrive. Their announcements are ignored. Announced slices that are not pushed within [PUSH_WAIT_MS], e.g. because
+ * the server skipped this client for lack of credits, are requested as usual. Pushing is not ordered with the control
+ * connection, so pushed slices of a stack are held back until the [Stack] has been piped downstream. They are dropped
+ * if it is not announced within [STACK_WAIT_MS].
+ *
+ * Otherwise, if the server runs on the same host and [sharedMemory] is set, slices are copied out of its
+ * [SharedSliceRing] by this agent, not by the listener dispatch. Only slices that are not (anymore) in there are
+ * requested. Off by default, the server has to enable it as well.
+ *
+ * If [bulkStacks] is set, announced slices of a known stack are collected and fetched in one transfer, see
+ * [BiggishDataClient.requestStack], once the last slice of the stack is announced, enough for a transfer are
+ * collected or no further one was announced for [BULK_WAIT_MS]. The server announces every slice either way, so this
+ * is up to each client. The transferred slices are piped downstream with their announced metadata as views of the
+ * one transfer buffer. If [ownedSliceBuffers] is set, they are copied into buffers of their own instead, e.g. for a
+ * [RemoteMicroscopeRelay] that stores and frees them one by one, and the transfer buffer is freed.
+ *
+ * If [resolutionPyramid] is set, the coarsest [SlicePyramid] level of each single slice is requested before the slice
+ * itself. It is piped downstream as a preview with the same id, the image meta of the level and
+ * [Slice.previewLevel] set, unless the full slice is already there. Slices of stacks are fetched in full resolution only.
+ *
+ * If a [roi] is set only that region of single slices is requested. Slices of a stack acquired with a region, see
+ * [nextStackRoi], are restricted to it as well. Such slices, and their stacks, are piped downstream with the image
+ * meta of the region and their position moved to its center. Pushed and shared slices are always whole.
+ *
+ * Bulk transfers, previews and regions need a server that advertised
+ * [BaseServerSignal.ServerHello.CHUNK_EXTENSIONS]. Older servers are asked for whole slices one by one, see
+ * [BiggishDataClient.serverAcceptsExtensions].
+ *
+ * If a [cache] is given, whole slices fetched one by one are put into it and served from it when they are announced
+ * again, e.g. after a reconnect. By default the cache is shared by all instances of a process, see [SliceCache.shared].
+ * Regions and previews bypass it.
  */
 class SliceRequester(
     controlSignalsClient: ControlSignalsClient,
-    listeners: List<(BaseServerSignal) -> Unit> = emptyList()
+    listeners: List<(BaseServerSignal) -> Unit> = emptyList(),
+    pushSlices: Boolean = MicroscenerySettings.get(Settings.Network.PushSlices, false),
+    sharedMemory: Boolean = MicroscenerySettings.get(Settings.Network.SharedMemory, false),
+    private val bulkStacks: Boolean = MicroscenerySettings.get(Settings.Network.BulkStacks, false),
+    private val resolutionPyramid: Boolean = MicroscenerySettings.get(Settings.Network.ResolutionPyramid, false),
+    private val liveDelta: Boolean = MicroscenerySettings.get(Settings.Network.LiveDelta, false),
+    private val cache: SliceCache? = SliceCache.shared(),
+    private val ownedSliceBuffers: Boolean = false
 ) : Agent() {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
 
     private val signalsIn = event<BaseServerSignal>()
 
+    private val requestedSlices = ConcurrentHashMap<Int, Slice>()
+
+    // slices whose preview has been requested, by slice id
+    private val requestedPreviews = ConcurrentHashMap<Int, Slice>()
+
+    // the announced slices of each transfer
+    private val requestedStacks = ConcurrentHashMap<StackRange, List<Slice>>()
+
+    // guarded by itself, used by the listener dispatch of [ControlSignalsClient] and this agent. Announced stacks in
+    // order, the newest last.
+    private val stacks = LinkedHashMap<Int, StackProgress>()
+
+    // only used by the listener dispatch of [ControlSignalsClient]. Regions of stacks in order, the newest last.
+    private val stackRois = LinkedHashMap<Int, SliceRoi>()
+
+    // identifies the server in [cache]
+    private val server = "${controlSignalsClient.host}:${controlSignalsClient.port}"
+
     private val dataConnection = BiggishDataClient(
-        controlSignalsClient.zContext, controlSignalsClient.port + 1, controlSignalsClient.host
+        controlSignalsClient.zContext, controlSignalsClient.port + 1, controlSignalsClient.host,
+        onSliceDropped = { dropped ->
+            when {
+                dropped.stack != null -> requestedStacks.remove(dropped.stack)
+                dropped.level > 0 -> requestedPreviews.remove(dropped.sliceId)
+                else -> {
+                    requestedSlices.remove(dropped.sliceId)
+                    requestedPreviews.remove(dropped.sliceId)
+                }
+            }
+        }
     )
 
-    private val requestedSlices = ConcurrentHashMap<Int, Slice>()
+    // guards the four below. Announcement and pushed data of a slice can arrive in any order.
+    private val pushLock = Any()
+    // announced slices and until when to wait for them to be pushed
+    private val awaitingPush = LinkedHashMap<Int, Pair<Slice, Long>>()
+    // ids of recently pushed slices, their announcements are still to come
+    private val recentlyPushed = LinkedHashSet<Int>()
+    // ids of the stacks piped downstream, the newest last
+    private val announcedStacks = LinkedHashSet<Int>()
+    // pushed slices of stacks that have not been piped downstream yet and since when they wait, by stack id
+    private val heldPushes = LinkedHashMap<Int, MutableList<Pair<Slice, Long>>>()
+
+    private val pushConnection = if (pushSlices) {
+        SlicePushClient(
+            controlSignalsClient.zContext, controlSignalsClient.port + PUSH_PORT_OFFSET, controlSignalsClient.host,
+            onSlice = this::processPushedSlice
+        )
+    } else null
+
+    // the server creates the file, it might not be there yet
+    private val sharedRingPort = if (sharedMemory && !pushSlices && SharedSliceRing.isLocal(controlSignalsClient.host)) {
+        controlSignalsClient.port
+    } else null
+    private var sharedRing: SharedSliceRing? = null
+    private var lastSharedRingAttempt = 0L
+    // announced slices to be read from [sharedRing] by this agent
+    private val sharedReads = LinkedBlockingQueue<Slice>()
+
+    /**
+     * Set if the microscope is live and only the newest slice is of interest.
+     */
+    @Volatile
+    var liveMode = false
+
+    // set once the server advertised them, see [BaseServerSignal.ServerHello.capabilities]
+    @Volatile
+    private var chunkExtensions = false
+
+    /**
+     * Region of single slices to fetch, e.g. while zoomed in. Null for whole slices.
+     */
+    @Volatile
+    var roi: SliceRoi? = null
+
+    /**
+     * Region to fetch of the slices of the next announced stack, see
+     * [microscenery.signals.MicroscopeControlSignal.AcquireStack.roiStart].
+     * It sticks to that stack.
+     */
+    @Volatile
+    var nextStackRoi: SliceRoi? = null
 
     init {
         listeners.forEach { addListener(it) }
@@ -46,37 +176,187 @@ class SliceRequester(
         }
     }
 
+    /**
+     * Additionally fetch data from these ports of the server, see [BiggishDataClient.connectDataPorts].
+     */
+    fun connectDataPorts(ports: List<Int>) = dataConnection.connectDataPorts(ports)
+
     override fun onLoop() {
-        val sliceParts = dataConnection.outputQueue.poll(200, TimeUnit.MILLISECONDS) ?: return
-        val meta = requestedSlices[sliceParts.id]
+        if (pushConnection != null) {
+            requestOverduePushes()
+            dropUnannouncedPushes()
+        }
+        if (bulkStacks) requestWaitingStackSlices()
+
+        val sliceParts = if (sharedRingPort != null) {
+            // most slices are read from the ring, fetched ones are picked up in between
+            sharedReads.poll(SHARED_READ_WAIT_MS, TimeUnit.MILLISECONDS)?.let { readShared(it) }
+            dataConnection.outputQueue.poll()
+        } else {
+            val timeout = when {
+                pushConnection != null -> PUSH_WAIT_MS
+                bulkStacks -> BULK_WAIT_MS
+                else -> 200L
+            }
+            dataConnection.outputQueue.poll(timeout, TimeUnit.MILLISECONDS)
+        } ?: return
+        sliceParts.stack?.let {
+            handOverStack(sliceParts, it)
+            return
+        }
+        if (sliceParts.level > 0) {
+            handOverPreview(sliceParts)
+            return
+        }
+        sliceParts.roi?.let {
+            handOverRoi(sliceParts, it)
+            return
+        }
+        requestedPreviews.remove(sliceParts.id)
+        val meta = requestedSlices.remove(sliceParts.id)
 
         if (meta == null) {
-            logger.warn("Got data for slice ${sliceParts.id} but it was not requested.")
+            // e.g. it got pushed in the meantime
+            logger.debug("Got data for slice ${sliceParts.id} but it was not requested (anymore).")
+            MemoryUtil.memFree(sliceParts.data)
             return
         }
         if (sliceParts.size != meta.size) {
             logger.error("Size mismatch for slice ${sliceParts.id} ${sliceParts.size} vs ${meta.size}")
         }
+        cache?.put(server, meta, sliceParts.data)
 
-        val buffer = MemoryUtil.memAlloc(sliceParts.size)
-        sliceParts.chunks.forEach {
-            buffer.put(it.value)
+        // the chunks have been assembled in place, the buffer is handed over as it is
+        synchronized(signalsIn) {
+            signalsIn(meta.copy(data = sliceParts.data))
+        }
+    }
+
+    private fun handOverPreview(preview: SliceChunkCollector) {
+        val meta = requestedPreviews.remove(preview.sliceId)
+        if (meta == null || preview.sliceId !in requestedSlices) {
+            // the full slice is already there or won't come
+            MemoryUtil.memFree(preview.data)
+            return
+        }
+        synchronized(signalsIn) {
+            signalsIn(
+                meta.copy(
+                    size = preview.size,
+                    imageMeta = SlicePyramid.levelMeta(meta.imageMeta, preview.level),
+                    data = preview.data,
+                    previewLevel = preview.level
+                )
+            )
+        }
+    }
+
+    private fun handOverRoi(transfer: SliceChunkCollector, roi: SliceRoi) {
+        val meta = requestedSlices.remove(transfer.sliceId)
+        if (meta == null) {
+            logger.debug("Got data for a region of slice ${transfer.sliceId} but it was not requested (anymore).")
+            MemoryUtil.memFree(transfer.data)
+            return
         }
-        buffer.flip()
         synchronized(signalsIn) {
-            signalsIn(meta.copy(data = buffer))
+            signalsIn(regionOf(meta, roi).copy(data = transfer.data))
         }
     }
 
     /**
-     * Executed by the network thread of [ControlSignalsClient]
+     * Metadata of the [roi] of [slice]
+     */
+    private fun regionOf(slice: Slice, roi: SliceRoi) = slice.copy(
+        size = roi.bytes(slice.imageMeta.numericType.bytes),
+        stagePos = Vector3f(slice.stagePos).add(roi.centerOffset(slice.imageMeta)),
+        imageMeta = roi.imageMeta(slice.imageMeta)
+    )
+
+    /**
+     * Pipes the slices of a stack transfer downstream. They share the transfer buffer.
+     */
+    private fun handOverStack(transfer: SliceChunkCollector, range: StackRange) {
+        val slices = requestedStacks.remove(range)
+        if (slices == null) {
+            logger.debug("Got data for ${range.sliceCount} slices of stack ${range.stackId} but they were not requested (anymore).")
+            MemoryUtil.memFree(transfer.data)
+            return
+        }
+
+        slices.forEachIndexed { i, announced ->
+            val data = transfer.data.duplicate()
+            // this cast has to be done to be compatible with JDK 8
+            (data as Buffer).limit((i + 1) * range.sliceSize).position(i * range.sliceSize)
+            val view = data.slice().order(transfer.data.order())
+
+            val roi = range.roi
+            if (roi == null) cache?.put(server, announced, view)
+            val slice = if (roi == null) announced else regionOf(announced, roi)
+            val sliceData = if (ownedSliceBuffers) {
+                MemoryUtil.memAlloc(range.sliceSize).order(view.order()).also { MemoryUtil.memCopy(view, it) }
+            } else view
+            synchronized(signalsIn) {
+                signalsIn(slice.copy(data = sliceData))
+            }
+        }
+        if (ownedSliceBuffers) MemoryUtil.memFree(transfer.data)
+    }
+
+    /**
+     * Executed by the listener dispatch of [ControlSignalsClient]
      */
     private fun processServerSignal(signal: BaseServerSignal) {
         when (signal) {
+            is Stack -> {
+                nextStackRoi?.takeIf { it.fits(signal.imageMeta.imageSize) }?.let {
+                    stackRois.remove(signal.Id)
+                    stackRois[signal.Id] = it
+                    if (stackRois.size > KNOWN_STACKS) stackRois.remove(stackRois.keys.first())
+                }
+                nextStackRoi = null
+                val stackRoi = stackRois[signal.Id]
+                val downstream = if (stackRoi == null) signal else {
+                    val offset = stackRoi.centerOffset(signal.imageMeta)
+                    signal.copy(
+                        from = Vector3f(signal.from).add(offset),
+                        to = Vector3f(signal.to).add(offset),
+                        imageMeta = stackRoi.imageMeta(signal.imageMeta)
+                    )
+                }
+                if (bulkStacks) synchronized(stacks) {
+                    // a stack id is reused when a live stack is captured again
+                    stacks.remove(signal.Id)?.let { requestStackSlices(it) }
+                    stacks[signal.Id] = StackProgress(signal, stackRoi)
+                    if (stacks.size > KNOWN_STACKS) {
+                        val eldest = stacks.keys.first()
+                        stacks.remove(eldest)
+                        requestedStacks.keys.removeAll { it.stackId == eldest }
+                    }
+                }
+                synchronized(signalsIn) {
+                    signalsIn(downstream)
+                }
+                if (pushConnection != null) releaseHeldPushes(signal.Id)
+            }
+
             is Slice -> {
-                if (dataConnection.requestSlice(signal.Id, signal.size)) {
-                    // save signal for eventual data receiving
-                    requestedSlices[signal.Id] = signal
+                if (bulkStacks && pushConnection == null && collectStackSlice(signal)) return
+                if (pushConnection == null) {
+                    requestData(signal)
+                    return
+                }
+                synchronized(pushLock) {
+                    if (!recentlyPushed.remove(signal.Id)) {
+                        awaitingPush[signal.Id] = signal to System.currentTimeMillis() + PUSH_WAIT_MS
+                    }
+                }
+            }
+
+            is BaseServerSignal.ServerHello -> {
+                chunkExtensions = BaseServerSignal.ServerHello.CHUNK_EXTENSIONS in signal.capabilities
+                dataConnection.serverAcceptsExtensions = chunkExtensions
+                synchronized(signalsIn) {
+                    signalsIn(signal)
                 }
             }
 
@@ -89,7 +369,288 @@ class SliceRequester(
         }
     }
 
+    /**
+     * Executed by the listener dispatch of [ControlSignalsClient] or, for overdue pushes, by this agent
+     */
+    private fun requestData(signal: Slice) {
+        val roi = roiOf(signal)
+        if (roi != null) {
+            requestRoi(signal, roi)
+            return
+        }
+        cache?.get(server, signal)?.let { data ->
+            // might have been marked as requested, see [requestOverduePushes]
+            requestedSlices.remove(signal.Id)
+            synchronized(signalsIn) {
+                signalsIn(signal.copy(data = data))
+            }
+            return
+        }
+        if (sharedRingPort != null) {
+            sharedReads.offer(signal)
+            return
+        }
+        fetch(signal)
+    }
+
+    /**
+     * Requests the whole slice from the server.
+     */
+    private fun fetch(signal: Slice) {
+        // save signal for eventual data receiving
+        requestedSlices[signal.Id] = signal
+        if (resolutionPyramid && signal.stackIdAndSliceIndex == null) requestPreview(signal)
+        val requested = when {
+            signal.stackIdAndSliceIndex != null ->
+                dataConnection.requestSlice(signal.Id, signal.size, SliceRequestPriority.BACKFILL)
+            liveMode ->
+                dataConnection.requestSlice(signal.Id, signal.size, SliceRequestPriority.LIVE, LIVE_GROUP, liveDelta)
+            else -> dataConnection.requestSlice(signal.Id, signal.size)
+        }
+        if (!requested) requestedSlices.remove(signal.Id)
+    }
+
+    /**
+     * @return the region to fetch of [slice] or null for all of it
+     */
+    private fun roiOf(slice: Slice): SliceRoi? {
+        if (!chunkExtensions) return null
+        val stackIdAndSliceIndex = slice.stackIdAndSliceIndex
+        val roi = if (stackIdAndSliceIndex != null) stackRois[stackIdAndSliceIndex.first] else this.roi
+        return roi?.takeIf { it.fits(slice.imageMeta.imageSize) }
+    }
+
+    /**
+     * Executed by the listener dispatch of [ControlSignalsClient]
+     */
+    private fun requestRoi(signal: Slice, roi: SliceRoi) {
+        requestedSlices[signal.Id] = signal
+        val requested = when {
+            signal.stackIdAndSliceIndex != null ->
+                dataConnection.requestSliceRoi(signal.Id, roi, signal.imageMeta, SliceRequestPriority.BACKFILL)
+            liveMode ->
+                dataConnection.requestSliceRoi(signal.Id, roi, signal.imageMeta, SliceRequestPriority.LIVE, LIVE_GROUP)
+            else -> dataConnection.requestSliceRoi(signal.Id, roi, signal.imageMeta)
+        }
+        if (requested == null) requestedSlices.remove(signal.Id)
+    }
+
+    /**
+     * Executed by the listener dispatch of [ControlSignalsClient]
+     */
+    private fun requestPreview(signal: Slice) {
+        if (!chunkExtensions) return
+        val level = SlicePyramid.LEVELS
+        val size = SlicePyramid.levelBytes(signal.imageMeta, level)
+        if (size <= 0 || size >= signal.size) return
+
+        requestedPreviews[signal.Id] = signal
+        val group = if (liveMode) PREVIEW_LIVE_GROUP else null
+        val priority = if (liveMode) SliceRequestPriority.LIVE else SliceRequestPriority.NORMAL
+        if (dataConnection.requestSliceLevel(signal.Id, level, size, priority, group) == null) {
+            requestedPreviews.remove(signal.Id)
+        }
+    }
+
+    /**
+     * Keeps an announced slice of a known stack for a bulk transfer, see [requestStackSlices].
+     * Executed by the listener dispatch of [ControlSignalsClient]
+     *
+     * @return false if the slice is to be requested on its own
+     */
+    private fun collectStackSlice(announced: Slice): Boolean = synchronized(stacks) {
+        if (!chunkExtensions) return false
+        val (stackId, index) = announced.stackIdAndSliceIndex ?: return false
+        val progress = stacks[stackId] ?: return false
+        // e.g. announced again, the transfers only go forward
+        if (index < progress.nextIndex || announced.size <= 0) return false
+
+        progress.waiting[index] = announced
+        progress.lastAnnouncement = System.currentTimeMillis()
+        if (index >= progress.stack.slicesCount - 1 || progress.waiting.size >= maxSlicesPerTransfer(progress, announced)) {
+            requestStackSlices(progress)
+        }
+        true
+    }
+
+    /**
+     * Requests the collected slices of stacks that got no further announcement for [BULK_WAIT_MS], e.g. since the
+     * stack is captured slowly or got interrupted. Executed by this agent.
+     */
+    private fun requestWaitingStackSlices() = synchronized(stacks) {
+        val now = System.currentTimeMillis()
+        stacks.values.forEach {
+            if (it.waiting.isNotEmpty() && now - it.lastAnnouncement >= BULK_WAIT_MS) requestStackSlices(it)
+        }
+    }
+
+    /**
+     * Requests the collected slices of the stack, one transfer per run of consecutive ones.
+     * To be called holding the lock of [stacks].
+     */
+    private fun requestStackSlices(progress: StackProgress) {
+        val first = progress.waiting.values.firstOrNull() ?: return
+        val roi = progress.roi?.takeIf { it.fits(first.imageMeta.imageSize) }
+        val sliceSize = roi?.bytes(first.imageMeta.numericType.bytes) ?: first.size
+        val maxSlicesPerTransfer = maxSlicesPerTransfer(progress, first)
+
+        var run = ArrayList<Slice>()
+        fun request() {
+            if (run.isEmpty()) return
+            val firstIndex = run.first().stackIdAndSliceIndex?.second ?: return
+            val range = StackRange(progress.stack.Id, firstIndex, run.size, sliceSize, roi, first.imageMeta.takeIf { roi != null })
+            // saved before requesting, the transfer might be done before the request returns
+            requestedStacks[range] = run
+            if (dataConnection.requestStack(range) == null) requestedStacks.remove(range)
+            run = ArrayList()
+        }
+        // ordered by index
+        for ((index, slice) in progress.waiting) {
+            val previous = run.lastOrNull()?.stackIdAndSliceIndex?.second
+            if ((previous != null && previous != index - 1) || run.size >= maxSlicesPerTransfer) request()
+            run += slice
+            progress.nextIndex = index + 1
+        }
+        request()
+        progress.waiting.clear()
+    }
+
+    private fun maxSlicesPerTransfer(progress: StackProgress, slice: Slice): Int {
+        val roi = progress.roi?.takeIf { it.fits(slice.imageMeta.imageSize) }
+        val sliceSize = roi?.bytes(slice.imageMeta.numericType.bytes) ?: slice.size
+        return (BiggishDataClient.MAX_STACK_TRANSFER_SIZE / sliceSize).coerceAtLeast(1)
+    }
+
+    /**
+     * Copies the slice out of the [SharedSliceRing] or fetches it if it is not in there. Executed by this agent.
+     */
+    private fun readShared(signal: Slice) {
+        val port = sharedRingPort ?: return
+        // closed by the server, e.g. since it restarted
+        if (sharedRing?.valid == false) sharedRing = null
+        if (sharedRing == null && System.currentTimeMillis() - lastSharedRingAttempt > 1000) {
+            lastSharedRingAttempt = System.currentTimeMillis()
+            sharedRing = SharedSliceRing.open(port)
+        }
+        val data = sharedRing?.read(signal.Id, signal.size, signal.created)
+        if (data == null) {
+            fetch(signal)
+            return
+        }
+        synchronized(signalsIn) {
+            signalsIn(signal.copy(data = data))
+        }
+    }
+
+    /**
+     * Executed by the network thread of [SlicePushClient]
+     */
+    private fun processPushedSlice(slice: Slice) {
+        val held = synchronized(pushLock) {
+            // if it is neither awaited nor being requested its announcement is still to come
+            if (awaitingPush.remove(slice.Id) == null && requestedSlices.remove(slice.Id) == null) {
+                recentlyPushed += slice.Id
+                if (recentlyPushed.size > RECENTLY_PUSHED_LIMIT) recentlyPushed.remove(recentlyPushed.first())
+            }
+            val stackId = slice.stackIdAndSliceIndex?.first
+            if (stackId != null && stackId !in announcedStacks) {
+                heldPushes.getOrPut(stackId) { mutableListOf() } += slice to System.currentTimeMillis()
+                true
+            } else false
+        }
+        if (!held) {
+            synchronized(signalsIn) {
+                signalsIn(slice)
+            }
+        }
+        pushConnection?.returnCredit()
+    }
+
+    /**
+     * Pipes the pushed slices of the stack downstream that came before it.
+     * Executed by the listener dispatch of [ControlSignalsClient] after the stack has been piped downstream.
+     */
+    private fun releaseHeldPushes(stackId: Int) {
+        val held = synchronized(pushLock) {
+            // a stack id is reused when a live stack is captured again
+            announcedStacks.remove(stackId)
+            announcedStacks += stackId
+            if (announcedStacks.size > KNOWN_STACKS) announcedStacks.remove(announcedStacks.first())
+            heldPushes.remove(stackId)
+        } ?: return
+        synchronized(signalsIn) {
+            held.forEach { signalsIn(it.first) }
+        }
+    }
+
+    /**
+     * Drops pushed slices of stacks that have not been announced within [STACK_WAIT_MS]. Executed by this agent.
+     */
+    private fun dropUnannouncedPushes() {
+        val now = System.currentTimeMillis()
+        val dropped = synchronized(pushLock) {
+            val dropped = mutableListOf<Slice>()
+            val iterator = heldPushes.values.iterator()
+            while (iterator.hasNext()) {
+                val held = iterator.next()
+                held.removeAll { (slice, since) -> (now - since > STACK_WAIT_MS).also { if (it) dropped += slice } }
+                if (held.isEmpty()) iterator.remove()
+            }
+            dropped
+        }
+        dropped.forEach {
+            logger.debug("Dropping pushed slice ${it.Id}, its stack has not been announced.")
+            MemoryUtil.memFree(it.data)
+        }
+    }
+
+    /**
+     * Requests the data of announced slices that have not been pushed in time.
+     */
+    private fun requestOverduePushes() {
+        val now = System.currentTimeMillis()
+        val overdue = synchronized(pushLock) {
+            val overdue = awaitingPush.values.filter { it.second < now }.map { it.first }
+            overdue.forEach {
+                awaitingPush.remove(it.Id)
+                // marked as requested before leaving the lock, so a late push is recognized as such
+                requestedSlices[it.Id] = it
+            }
+            overdue
+        }
+        overdue.forEach { requestData(it) }
+    }
+
     override fun onClose() {
+        pushConnection?.close()?.join()
+        synchronized(pushLock) {
+            heldPushes.values.forEach { held -> held.forEach { MemoryUtil.memFree(it.first.data) } }
+            heldPushes.clear()
+        }
         dataConnection.close().join()
+        sharedReads.clear()
+        // unmapped by the garbage collector
+        sharedRing = null
+    }
+
+    private class StackProgress(val stack: Stack, val roi: SliceRoi?) {
+        // first slice that has not been requested yet
+        var nextIndex = 0
+        // announced slices that have not been requested yet, by index
+        val waiting = TreeMap<Int, Slice>()
+        var lastAnnouncement = 0L
+    }
+
+    companion object {
+        private const val KNOWN_STACKS = 16
+        private const val LIVE_GROUP = "live"
+        private const val PREVIEW_LIVE_GROUP = "live preview"
+        private const val PUSH_WAIT_MS = 100L
+        private const val SHARED_READ_WAIT_MS = 10L
+        /** Time to wait for further slices of a stack before the announced ones are fetched in bulk */
+        const val BULK_WAIT_MS = 50L
+        private const val RECENTLY_PUSHED_LIMIT = 100
+        /** Time pushed slices of a stack wait for the stack to be announced */
+        const val STACK_WAIT_MS = 2000L
     }
-}
\ No newline at end of file
+}
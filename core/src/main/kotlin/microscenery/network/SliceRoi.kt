@@ -0,0 +1,89 @@
+package microscenery.network
+
+import microscenery.signals.ImageMeta
+import org.joml.Vector2i
+import org.joml.Vector3f
+import java.nio.Buffer
+import java.nio.ByteBuffer
+
+/**
+ * Rectangular region of a slice in pixel, [x] and [y] being its upper left corner. Only every [stride]th pixel of
+ * every [stride]th row is part of it, starting with the first one.
+ *
+ * The gathered region is laid out row by row without gaps, see [gather].
+ */
+data class SliceRoi(val x: Int, val y: Int, val width: Int, val height: Int, val stride: Int = 1) {
+
+    val outputWidth: Int
+        get() = (width + stride - 1) / stride
+
+    val outputHeight: Int
+        get() = (height + stride - 1) / stride
+
+    fun bytes(bytesPerPixel: Int) = outputWidth * outputHeight * bytesPerPixel
+
+    fun fits(imageSize: Vector2i) = x >= 0 && y >= 0 && width > 0 && height > 0 && stride > 0
+            && x + width <= imageSize.x && y + height <= imageSize.y
+
+    /**
+     * Image meta of the gathered region. A pixel covers [stride] times the distance.
+     */
+    fun imageMeta(imageMeta: ImageMeta) = imageMeta.copy(
+        imageSize = Vector2i(outputWidth, outputHeight),
+        vertexDiameter = imageMeta.vertexDiameter * stride
+    )
+
+    /**
+     * Offset of the center of the region to the center of the image in stage units.
+     */
+    fun centerOffset(imageMeta: ImageMeta) = Vector3f(
+        (x + width / 2f - imageMeta.imageSize.x / 2f) * imageMeta.vertexDiameter,
+        (y + height / 2f - imageMeta.imageSize.y / 2f) * imageMeta.vertexDiameter,
+        0f
+    )
+
+    /**
+     * Copies [length] bytes of the gathered region starting at [offset] out of the whole slice [src] into [dst].
+     * Position and limit of [src] are ignored. Rows are copied in bulk if [stride] is 1.
+     */
+    fun gather(src: ByteBuffer, imageWidth: Int, bytesPerPixel: Int, offset: Int, length: Int, dst: ByteBuffer) {
+        val rowBytes = outputWidth * bytesPerPixel
+        val end = offset + length
+        var position = offset
+        val source = src.duplicate()
+        // this cast has to be done to be compatible with JDK 8
+        (source as Buffer).clear()
+        while (position < end) {
+            val row = position / rowBytes
+            val inRow = position % rowBytes
+            val sourceRow = y + row * stride
+            if (stride == 1) {
+                val run = (rowBytes - inRow).coerceAtMost(end - position)
+                val start = (sourceRow * imageWidth + x) * bytesPerPixel + inRow
+                (source as Buffer).limit(start + run).position(start)
+                dst.put(source)
+                position += run
+            } else {
+                val pixel = inRow / bytesPerPixel
+                val byte = inRow % bytesPerPixel
+                dst.put(source.get((sourceRow * imageWidth + x + pixel * stride) * bytesPerPixel + byte))
+                position++
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * @return null if the corners don't span an area, e.g. the defaults of
+         * [microscenery.signals.MicroscopeControlSignal.AcquireStack]
+         */
+        fun fromCorners(start: Vector2i, end: Vector2i): SliceRoi? {
+            val x = minOf(start.x, end.x)
+            val y = minOf(start.y, end.y)
+            val width = maxOf(start.x, end.x) - x
+            val height = maxOf(start.y, end.y) - y
+            if (width <= 0 || height <= 0) return null
+            return SliceRoi(x, y, width, height)
+        }
+    }
+}
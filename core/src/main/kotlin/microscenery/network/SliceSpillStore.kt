@@ -0,0 +1,275 @@
+package microscenery.network
+
+import fromScenery.lazyLogger
+import microscenery.Agent
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.util.ArrayDeque
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Second tier of [SliceStorage]. Slices evicted from memory are written to memory mapped segment files and can be read
+ * from there until the [maxDiskSize] is used up. Segments are [segmentSize] large, at most. Each instance keeps its
+ * segments in a new subdirectory of [directory], see [segmentDirectory], so stores of several servers or of one JVM
+ * don't overwrite each other.
+ *
+ * Writing happens in the background by this agent. Segments are filled one after another. If all are in use the
+ * oldest one is cleared and reused. Segments of which less than half is still in use, because their slices have been
+ * replaced, are compacted into the current one. Only this agent writes, clears and reuses segments. Slices are copied
+ * outside the lock, readers only wait for the bookkeeping.
+ *
+ * Mapped files can't be unmapped explicitly and readers might still hold views of them, so segment files are reused
+ * while the store is open. On [close] they are deleted. Where a mapped file can't be deleted, e.g. on Windows, it is
+ * removed when the JVM exits.
+ *
+ * Thread safe.
+ */
+class SliceSpillStore(
+    val directory: File,
+    val maxDiskSize: Long,
+    val segmentSize: Int = DEFAULT_SEGMENT_SIZE
+) : Agent() {
+    private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
+
+    // evicted slices stay in memory until written, so only a few may wait
+    private val toWrite = LinkedBlockingQueue<PendingSlice>(16)
+
+    // guards everything below
+    private val lock = Any()
+    private val index = HashMap<Int, Location>()
+    private val segmentBytes = minOf(segmentSize.toLong(), maxDiskSize).toInt()
+    private val maxSegments = (maxDiskSize / segmentBytes).toInt()
+    private val allSegments = mutableListOf<Segment>()
+    // oldest first, the last one is written to
+    private val usedSegments = ArrayDeque<Segment>()
+    private val freeSegments = ArrayDeque<Segment>()
+    // slices being copied by id, removing them cancels indexing them
+    private val inFlight = HashMap<Int, Location>()
+
+    /** Holds the segment files of this instance only */
+    val segmentDirectory: File
+
+    /** Number of evicted slices written to disk */
+    @Volatile
+    var spilledSlices = 0L
+        private set
+
+    init {
+        directory.mkdirs()
+        segmentDirectory = Files.createTempDirectory(directory.toPath(), "spill").toFile()
+        // registered before the segments, so it is deleted after them
+        segmentDirectory.deleteOnExit()
+        startAgent()
+    }
+
+    /**
+     * Queues [data] to be written. [written] is called once [data] is not needed anymore, written or not.
+     */
+    fun spill(id: Int, data: ByteBuffer, written: () -> Unit) {
+        if (!toWrite.offer(PendingSlice(id, data, written))) {
+            logger.warn("Not writing slice $id to disk, too many pending.")
+            written()
+        }
+    }
+
+    /**
+     * Pins the segment of the slice until the returned release function is called.
+     *
+     * @return a read only view of the slice and its release function or null if it is not on disk
+     */
+    fun acquire(id: Int): Pair<ByteBuffer, () -> Unit>? = synchronized(lock) {
+        val location = index[id] ?: return null
+        val segment = location.segment
+        segment.pins++
+
+        val view = segment.buffer.asReadOnlyBuffer()
+        // this cast has to be done to be compatible with JDK 8
+        (view as Buffer).limit(location.offset + location.size).position(location.offset)
+        view.slice() to { release(segment) }
+    }
+
+    fun remove(id: Int): Unit = synchronized(lock) {
+        index.remove(id)?.let { it.segment.liveBytes -= it.size }
+        inFlight.remove(id)
+    }
+
+    override fun onLoop() {
+        val pending = toWrite.poll(200, TimeUnit.MILLISECONDS)
+        if (pending == null) {
+            compact()
+            return
+        }
+        try {
+            if (write(pending.id, pending.data)) spilledSlices++
+        } finally {
+            pending.written()
+        }
+    }
+
+    /**
+     * Reserves space under the lock, copies outside of it and indexes the slice afterwards.
+     *
+     * @return false if the slice could not be written
+     */
+    private fun write(id: Int, data: ByteBuffer): Boolean {
+        val size = data.capacity()
+        if (size > segmentBytes) return false
+
+        val location = synchronized(lock) {
+            val segment = segmentWithSpace(size) ?: return false
+            Location(segment, segment.writePosition, size).also {
+                segment.writePosition += size
+                inFlight[id] = it
+            }
+        }
+
+        val target = location.segment.buffer.duplicate()
+        val src = data.duplicate()
+        // this cast has to be done to be compatible with JDK 8
+        (target as Buffer).position(location.offset)
+        (src as Buffer).clear()
+        target.put(src)
+
+        synchronized(lock) {
+            // replaced meanwhile, the space is wasted until the segment is cleared
+            if (inFlight[id] !== location) return false
+            inFlight.remove(id)
+            index.put(id, location)?.let { it.segment.liveBytes -= it.size }
+            location.segment.ids += id
+            location.segment.liveBytes += size
+        }
+        return true
+    }
+
+    private fun segmentWithSpace(size: Int): Segment? {
+        usedSegments.peekLast()?.let { if (it.writePosition + size <= segmentBytes) return it }
+
+        val segment = freeSegments.pollFirst() ?: newSegment() ?: reuseOldestSegment() ?: return null
+        usedSegments.addLast(segment)
+        return segment
+    }
+
+    private fun newSegment(): Segment? {
+        if (allSegments.size >= maxSegments) return null
+        val file = File(segmentDirectory, "slices-${allSegments.size}.segment")
+        return try {
+            val buffer = RandomAccessFile(file, "rw").use { raf ->
+                raf.setLength(segmentBytes.toLong())
+                raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes.toLong())
+            }
+            file.deleteOnExit()
+            Segment(file, buffer).also { allSegments += it }
+        } catch (e: IOException) {
+            logger.warn("Could not create spill segment $file: ${e.message}")
+            null
+        }
+    }
+
+    private fun reuseOldestSegment(): Segment? {
+        // the one being written to is only the oldest if it is the only one, and then it is full
+        val oldest = usedSegments.peekFirst() ?: return null
+        if (oldest.pins > 0) return null
+        usedSegments.removeFirst()
+        logger.info("Dropping ${oldest.ids.size} slices from disk to free space.")
+        clear(oldest)
+        return oldest
+    }
+
+    /**
+     * Moves the slices of the first sparsely used segment into the current one if they fit. The segment is only
+     * cleared if no reader pinned it meanwhile, otherwise this is tried again later.
+     */
+    private fun compact() {
+        val (sparse, ids) = synchronized(lock) {
+            val current = usedSegments.peekLast() ?: return
+            val sparse = usedSegments.firstOrNull {
+                it !== current && it.pins == 0 && it.liveBytes < it.writePosition / 2
+                        && it.liveBytes <= segmentBytes - current.writePosition
+            } ?: return
+            sparse to sparse.ids.toList()
+        }
+
+        for (id in ids) {
+            val view = synchronized(lock) {
+                val location = index[id]
+                if (location == null || location.segment !== sparse) null
+                else sparse.buffer.duplicate().also {
+                    // this cast has to be done to be compatible with JDK 8
+                    (it as Buffer).limit(location.offset + location.size).position(location.offset)
+                }
+            } ?: continue
+            // fits into the current segment, so no other segment gets cleared meanwhile. Only this agent clears
+            // segments, so the view stays valid while it is copied.
+            write(id, view.slice())
+        }
+
+        synchronized(lock) {
+            if (sparse.pins > 0) return
+            usedSegments.remove(sparse)
+            clear(sparse)
+            freeSegments.addLast(sparse)
+        }
+    }
+
+    private fun clear(segment: Segment) {
+        for (id in segment.ids) {
+            if (index[id]?.segment === segment) index.remove(id)
+        }
+        segment.ids.clear()
+        segment.writePosition = 0
+        segment.liveBytes = 0
+    }
+
+    private fun release(segment: Segment): Unit = synchronized(lock) {
+        segment.pins--
+    }
+
+    /**
+     * The segment files stay mapped until they are garbage collected, readers that still hold views of them keep
+     * working even if the files are deleted.
+     */
+    override fun onClose() {
+        toWrite.forEach { it.written() }
+        synchronized(lock) {
+            index.clear()
+            inFlight.clear()
+            allSegments.forEach { it.file.delete() }
+        }
+        segmentDirectory.delete()
+    }
+
+    private class PendingSlice(val id: Int, val data: ByteBuffer, val written: () -> Unit)
+
+    private class Segment(val file: File, val buffer: MappedByteBuffer) {
+        var writePosition = 0
+        var liveBytes = 0
+        var pins = 0
+        val ids = HashSet<Int>()
+    }
+
+    private class Location(val segment: Segment, val offset: Int, val size: Int)
+
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024
+
+        /**
+         * @return null if spilling is disabled, see [Settings.Network.SpillSizeMb]
+         */
+        fun fromSettings(): SliceSpillStore? {
+            val sizeMb = MicroscenerySettings.get(Settings.Network.SpillSizeMb, 0)
+            if (sizeMb <= 0) return null
+            val directory = MicroscenerySettings.get(Settings.Network.SpillDirectory, "")
+                .ifBlank { File(System.getProperty("java.io.tmpdir"), "microscenery-spill").path }
+            return SliceSpillStore(File(directory), sizeMb * 1024L * 1024L)
+        }
+    }
+}
@@ -2,31 +2,92 @@ package microscenery.network
 
 import fromScenery.lazyLogger
 import microscenery.MicroscenerySettings
+import microscenery.Settings
+import microscenery.signals.NumericType
+import org.joml.Vector2i
 import org.lwjgl.system.MemoryUtil
+import java.io.Closeable
 import java.nio.ByteBuffer
-import java.util.concurrent.ConcurrentSkipListMap
 
 
 /**
  * Stores bytebuffers and takes up to [maxStorageSize] bytes.
- * If more data is added the oldest data is discarded until enough space is freed.
+ * If more data is added the least recently used data is discarded until enough space is freed.
  *
  * Default is 2mb.
+ *
+ * Thread safe. Slices are added by [RemoteMicroscopeServer] and read by the threads of the [BiggishDataServer]s.
+ * Readers [acquireSlice] a [SliceLease] which pins the slice until it is closed. Dropped buffers are freed once the
+ * last lease is closed. [BiggishDataServer] hands views of them to ZMQ without copying and therefore closes its leases
+ * only after ZMQ is done with them, see [ZeroCopySender].
+ *
+ * If [compression] is enabled slices of a known [NumericType] are additionally encoded once when they are added, see
+ * [SliceCodecs]. The encoded copy counts towards [maxStorageSize] and is only kept if it is smaller than the raw data.
+ *
+ * If [pyramid] is enabled the downsampled levels of [SlicePyramid] are built once for slices of a known size and
+ * type. Like the encoded copy they count towards [maxStorageSize]. They are not encoded.
+ *
+ * If a [spillStore] is given, evicted slices are written to disk and served from there once they are not in memory
+ * anymore. Only the raw data is kept on disk.
+ *
+ * Slices added with their place in a stack can also be looked up by it, see [acquireStackSlice]. The index is kept
+ * for the last [INDEXED_STACKS] stacks. Later slices of a stack replace earlier ones of the same index, e.g. when a
+ * live stack is captured again.
  */
-class SliceStorage(val maxStorageSize: Int = MicroscenerySettings.get("Network.DataStorageSizeMb", 2) * 1024 * 1024) {
+class SliceStorage(
+    val maxStorageSize: Int = MicroscenerySettings.get("Network.DataStorageSizeMb", 2) * 1024 * 1024,
+    val compression: Boolean = MicroscenerySettings.get(Settings.Network.Compression, false),
+    val pyramid: Boolean = MicroscenerySettings.get(Settings.Network.ResolutionPyramid, false),
+    val spillStore: SliceSpillStore? = SliceSpillStore.fromSettings()
+) {
     private val logger by lazyLogger(System.getProperty("scenery.LogLevel", "info"))
 
+    // guards everything below
+    private val lock = Any()
+
     private var currentlyStoredBytes = 0
 
-    private var storage = mapOf<Int, ByteBuffer>()
-    private val sliceTimestamps = ConcurrentSkipListMap<Long, Int>()
+    // in access order, the eldest entry is the least recently used one
+    private val storage = LinkedHashMap<Int, StoredSlice>(16, 0.75f, true)
+
+    // stack id to slice index to slice id, in insertion order
+    private val stackIndex = LinkedHashMap<Int, HashMap<Int, Int>>()
+
+    /** Number of slices found by [acquireSlice] */
+    @Volatile
+    var hits = 0L
+        private set
+
+    /** Number of slices found on disk by [acquireSlice], also counted as [hits] */
+    @Volatile
+    var diskHits = 0L
+        private set
+
+    /** Number of slices not found by [acquireSlice] */
+    @Volatile
+    var misses = 0L
+        private set
+
+    /** Number of slices dropped to free memory */
+    @Volatile
+    var evictions = 0L
+        private set
 
     /**
-     * Not thread save
      * Transfers the memory responsibility for [data] to this class.
      * Slice storage works on only on whole buffers. Position and limit are ignored!
+     * A slice with an already stored id replaces the stored one.
+     *
+     * @param stackIdAndSliceIndex place of the slice in a stack, see [acquireStackSlice]
+     * @param imageSize in pixel, needed for the [pyramid]
      */
-    fun addSlice(id: Int, data: ByteBuffer) {
+    fun addSlice(
+        id: Int,
+        data: ByteBuffer,
+        numericType: NumericType? = null,
+        stackIdAndSliceIndex: Pair<Int, Int>? = null,
+        imageSize: Vector2i? = null
+    ) {
         if (maxStorageSize < data.capacity()) {
             logger.error(
                 "slice with id $id is could not be put in server storage since it exceeds the max storage " +
@@ -35,26 +96,175 @@ class SliceStorage(val maxStorageSize: Int = MicroscenerySettings.get("Network.D
             return
         }
 
-        while (currentlyStoredBytes + data.capacity() > maxStorageSize) {
-            val toBeDropped = sliceTimestamps.firstEntry()
-            sliceTimestamps.remove(toBeDropped.key)
-            // ToBeDropped (TBD)
-            val sliceTBDid = toBeDropped.value
-            val sliceTBDdata = storage.get(sliceTBDid)
-                ?: throw IllegalStateException("Wanted to drop slice $sliceTBDid but data was not to be found.")
-            storage = storage.minus(sliceTBDid)
-            logger.info("Dropping slice $sliceTBDid to free memory.")
-            MemoryUtil.memFree(sliceTBDdata)
-            //TODO somehow propagate status of freed buffer
-            currentlyStoredBytes -= sliceTBDdata.capacity()
+        // encoding and downsampling take a while, they are done outside the lock
+        val codec = if (compression) numericType?.let { SliceCodecs.forType(it) } else null
+        var encoded = codec?.let { SliceCodecs.encode(it, data) }
+        if (encoded != null && data.capacity() + encoded.data.capacity() > maxStorageSize) {
+            MemoryUtil.memFree(encoded.data)
+            encoded = null
+        }
+        var levels = if (pyramid && numericType != null && imageSize != null) {
+            SlicePyramid.build(data, imageSize, numericType)
+        } else emptyList()
+        if (data.capacity() + (encoded?.data?.capacity() ?: 0) + levels.sumOf { it.capacity() } > maxStorageSize) {
+            levels.forEach { MemoryUtil.memFree(it) }
+            levels = emptyList()
+        }
+        val slice = StoredSlice(data, encoded, levels)
+
+        synchronized(lock) {
+            storage.remove(id)?.let { old ->
+                // the same buffer added again, only its encoded copy and levels are new
+                if (old.data === data) {
+                    slice.dataUsers = old.dataUsers
+                    slice.dataUsers.count++
+                }
+                retire(old)
+            }
+            spillStore?.remove(id)
+
+            while (currentlyStoredBytes + slice.bytes > maxStorageSize) {
+                val eldestId = storage.keys.first()
+                val eldest = storage.remove(eldestId) ?: break
+                logger.info("Dropping slice $eldestId to free memory.")
+                spill(eldestId, eldest)
+                retire(eldest)
+                evictions++
+            }
+            storage[id] = slice
+            currentlyStoredBytes += slice.bytes
+
+            stackIdAndSliceIndex?.let { (stackId, index) ->
+                val slices = stackIndex.getOrPut(stackId) {
+                    if (stackIndex.size >= INDEXED_STACKS) stackIndex.remove(stackIndex.keys.first())
+                    HashMap()
+                }
+                slices[index] = id
+            }
+        }
+    }
+
+    /**
+     * Pins the slice until the returned lease is closed. Counts as use of the slice.
+     *
+     * @return null if the slice is not stored
+     */
+    fun acquireSlice(id: Int): SliceLease? = synchronized(lock) {
+        val slice = storage[id]
+        if (slice == null) {
+            val (data, releaseOnDisk) = spillStore?.acquire(id) ?: run {
+                misses++
+                return null
+            }
+            hits++
+            diskHits++
+            return SliceLease(data, null, emptyList(), releaseOnDisk)
         }
-        storage = storage.plus(id to data)
-        currentlyStoredBytes += data.capacity()
-        sliceTimestamps[System.currentTimeMillis()] = id
+        hits++
+        slice.pins++
+        SliceLease(slice.data.duplicate(), slice.encoded, slice.levels) { release(slice) }
     }
 
-    fun getSlice(id: Int): ByteBuffer? = storage[id]
+    /**
+     * Like [acquireSlice] but by the place of the slice in a stack.
+     *
+     * @return null if the slice is not stored or the stack is not indexed (anymore)
+     */
+    fun acquireStackSlice(stackId: Int, sliceIndex: Int): SliceLease? = synchronized(lock) {
+        val id = stackIndex[stackId]?.get(sliceIndex)
+        if (id == null) {
+            misses++
+            return null
+        }
+        acquireSlice(id)
+    }
+
+    /**
+     * Only for checks. The returned buffer might be freed any time, use [acquireSlice] to read from it.
+     */
+    fun getSlice(id: Int): ByteBuffer? = synchronized(lock) { storage[id]?.data }
 
     fun newSlice(size: Int): ByteBuffer = MemoryUtil.memAlloc(size)
 
-}
\ No newline at end of file
+    /**
+     * Keeps the slice pinned until it is written.
+     */
+    private fun spill(id: Int, slice: StoredSlice) {
+        val spillStore = spillStore ?: return
+        slice.pins++
+        spillStore.spill(id, slice.data) { release(slice) }
+    }
+
+    /**
+     * Stops writing to disk. The stored data stays valid.
+     */
+    fun close() {
+        spillStore?.close()
+    }
+
+    /**
+     * Frees the slice once it is not pinned anymore.
+     */
+    private fun retire(slice: StoredSlice) {
+        slice.retired = true
+        currentlyStoredBytes -= slice.bytes
+        if (slice.pins == 0) free(slice)
+    }
+
+    private fun release(slice: StoredSlice) = synchronized(lock) {
+        slice.pins--
+        if (slice.retired && slice.pins == 0) free(slice)
+    }
+
+    private fun free(slice: StoredSlice) {
+        if (--slice.dataUsers.count == 0) MemoryUtil.memFree(slice.data)
+        slice.encoded?.let { MemoryUtil.memFree(it.data) }
+        slice.levels.forEach { MemoryUtil.memFree(it) }
+    }
+
+    private class StoredSlice(val data: ByteBuffer, val encoded: EncodedSlice?, val levels: List<ByteBuffer>) {
+        val bytes = data.capacity() + (encoded?.data?.capacity() ?: 0) + levels.sumOf { it.capacity() }
+        var pins = 0
+        var retired = false
+        var dataUsers = DataUsers()
+    }
+
+    /**
+     * Slices that were added with the same buffer share it. The last one to be freed frees it.
+     */
+    private class DataUsers {
+        var count = 1
+    }
+
+    /**
+     * Access to a stored slice. The buffers stay valid until [close] is called.
+     *
+     * @param data the whole raw slice. Position and limit are free to be changed.
+     * @param encoded null if the slice is not encoded
+     */
+    class SliceLease internal constructor(
+        val data: ByteBuffer,
+        val encoded: EncodedSlice?,
+        private val levels: List<ByteBuffer>,
+        private val release: () -> Unit
+    ) : Closeable {
+        private var closed = false
+
+        /**
+         * @return a view of the [SlicePyramid] level or null if it has not been built
+         */
+        fun level(level: Int): ByteBuffer? = levels.getOrNull(level - 1)?.duplicate()
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            release()
+        }
+    }
+
+    companion object {
+        /** Number of stacks whose slices can be looked up by their index */
+        const val INDEXED_STACKS = 16
+    }
+
+}
@@ -0,0 +1,60 @@
+package microscenery.network
+
+import org.zeromq.SocketType
+import org.zeromq.ZContext
+import org.zeromq.ZMQ
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Lets other threads wake an agent that waits in [ZMQ.Poller.poll], e.g. because there is something to send.
+ *
+ * Register [receiver] for [ZMQ.Poller.POLLIN]. Wake ups are coalesced, at most one message is pending at a time.
+ */
+internal class WakeUpSocket(zContext: ZContext) {
+    private val address = "inproc://wakeUp-${nextAddress.getAndIncrement()}"
+
+    val receiver: ZMQ.Socket = zContext.createSocket(SocketType.PULL).apply { bind(address) }
+
+    // guarded by itself, ZMQ sockets are not thread safe
+    private val sender: ZMQ.Socket = zContext.createSocket(SocketType.PUSH).apply { connect(address) }
+    private var closed = false
+
+    private val pending = AtomicBoolean(false)
+
+    /**
+     * Thread safe.
+     */
+    fun wakeUp() {
+        if (!pending.compareAndSet(false, true)) return
+        synchronized(sender) {
+            if (!closed) sender.send(WAKE_UP, ZMQ.DONTWAIT)
+        }
+    }
+
+    /**
+     * To be called by the woken thread before it looks for work. Work handed over before this call is seen by it,
+     * work handed over after it wakes the thread again.
+     */
+    fun clear() {
+        @Suppress("ControlFlowWithEmptyBody")
+        while (receiver.recv(ZMQ.DONTWAIT) != null) {
+        }
+        pending.set(false)
+    }
+
+    fun close() {
+        synchronized(sender) {
+            closed = true
+            sender.linger = 0
+            sender.close()
+        }
+        receiver.linger = 0
+        receiver.close()
+    }
+
+    companion object {
+        private val WAKE_UP = ByteArray(1)
+        private val nextAddress = AtomicInteger()
+    }
+}
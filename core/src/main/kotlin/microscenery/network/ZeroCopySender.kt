@@ -0,0 +1,100 @@
+package microscenery.network
+
+import org.lwjgl.system.MemoryUtil
+import org.zeromq.ZMQ
+import java.lang.ref.PhantomReference
+import java.lang.ref.ReferenceQueue
+import java.nio.ByteBuffer
+
+/**
+ * Sends native buffers without copying them and tells when ZMQ is done with them.
+ *
+ * [ZMQ.Socket.sendByteBuffer] only keeps a view of the buffer, which is read by the I/O thread later on. ZMQ has no
+ * hook for when that happened. Therefore, each send gets a fresh wrapper of the memory that only ZMQ references. Once
+ * ZMQ dropped its views, the garbage collector enqueues the wrapper and [reclaim] calls the release callback of the
+ * send. Until then the memory has to stay valid.
+ *
+ * Like direct buffers of the JDK the wrappers depend on the garbage collector to be noticed, no collection is forced
+ * for them. While more than [maxPendingBytes] are pending, further sends are copied to the heap and released right
+ * away instead, so the memory held back for ZMQ stays bounded.
+ *
+ * Not thread safe. To be used by the thread owning the socket, which should call [reclaim] regularly.
+ */
+internal class ZeroCopySender(private val maxPendingBytes: Long = MAX_PENDING_BYTES) {
+
+    private val queue = ReferenceQueue<ByteBuffer>()
+
+    // keeps the references reachable until they are enqueued
+    private val pending = HashSet<PendingSend>()
+
+    /** Bytes handed to ZMQ that have not been released yet */
+    var pendingBytes = 0L
+        private set
+
+    /** Bytes copied since too much was pending */
+    var copiedBytes = 0L
+        private set
+
+    /**
+     * Sends the [ByteBuffer.remaining] bytes of [data]. [onReleased] is called by [reclaim] once ZMQ does not read from
+     * the memory anymore, or right away if nothing was sent. Heap buffers are kept alive by ZMQ itself, they are
+     * released right away as well, like copies made because too much is pending.
+     *
+     * @return false if the message was not sent, see [ZMQ.Socket.sendByteBuffer]
+     */
+    fun send(socket: ZMQ.Socket, data: ByteBuffer, flags: Int, onReleased: () -> Unit): Boolean {
+        reclaim()
+        val size = data.remaining()
+        if (size == 0 || !data.isDirect) {
+            val sent = socket.sendByteBuffer(data, flags) >= 0
+            onReleased()
+            return sent
+        }
+        // a single large send is never copied
+        if (pendingBytes > 0 && pendingBytes + size > maxPendingBytes) {
+            val copy = ByteArray(size)
+            data.duplicate().get(copy)
+            onReleased()
+            copiedBytes += size
+            return socket.send(copy, flags)
+        }
+        val wrapper = MemoryUtil.memByteBuffer(MemoryUtil.memAddress(data), size)
+        val send = PendingSend(wrapper, queue, size, onReleased)
+        pending += send
+        pendingBytes += size
+        if (socket.sendByteBuffer(wrapper, flags) < 0) {
+            // ZMQ did not take it
+            send.clear()
+            release(send)
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Calls the release callbacks of all sends ZMQ is done with.
+     */
+    fun reclaim() {
+        while (true) {
+            val send = queue.poll() as? PendingSend ?: break
+            release(send)
+        }
+    }
+
+    private fun release(send: PendingSend) {
+        if (!pending.remove(send)) return
+        pendingBytes -= send.size
+        send.onReleased()
+    }
+
+    private class PendingSend(
+        wrapper: ByteBuffer,
+        queue: ReferenceQueue<ByteBuffer>,
+        val size: Int,
+        val onReleased: () -> Unit
+    ) : PhantomReference<ByteBuffer>(wrapper, queue)
+
+    companion object {
+        const val MAX_PENDING_BYTES = 64L * 1024 * 1024
+    }
+}
@@ -71,6 +71,7 @@ sealed class BaseServerSignal {
     /**
      * Self identification message that will be send to new clients.
      * @param serverName be careful with special characters. This variable is also the bonjour name which prefers plain letters.
+     * @param subType may be followed by the [capabilities] of the server, each as " +name". Older clients ignore them.
      */
     data class ServerHello(
         val serverName: String,
@@ -78,6 +79,17 @@ sealed class BaseServerSignal {
         val subType: String
     ) : BaseServerSignal() {
 
+        /** Optional features of the protocol the server understands, e.g. [CHUNK_EXTENSIONS] or [SIGNAL_BATCHES] */
+        val capabilities: Set<String>
+            get() = subType.split(' ').filter { it.startsWith("+") }.map { it.drop(1) }.toSet()
+
+        /**
+         * @return a copy that advertises [capabilities] in addition
+         */
+        fun withCapabilities(vararg capabilities: String): ServerHello =
+            copy(subType = (listOf(subType.trim()) + capabilities.filter { it !in this.capabilities }.map { "+$it" })
+                .filter { it.isNotEmpty() }.joinToString(" "))
+
         override fun toProto(): org.withXR.network.v3.BaseServerSignal {
             val b = org.withXR.network.v3.BaseServerSignal.newBuilder()
             val b2 = b.serverHelloBuilder
@@ -89,6 +101,12 @@ sealed class BaseServerSignal {
         }
 
         companion object{
+            /** Data requests may carry a [microscenery.network.ChunkRequestExtension] */
+            const val CHUNK_EXTENSIONS = "chunkExtensions"
+
+            /** Control signals may be sent in batches and clients send heartbeats, see [microscenery.network.SignalBatch] */
+            const val SIGNAL_BATCHES = "signalBatches"
+
             fun org.withXR.network.v3.ServerHello.toPoko() =
                 ServerHello(this.serverName, this.serverType.toPoko(), this.subType)
         }
@@ -114,6 +132,8 @@ sealed class BaseServerSignal {
 /**
  * @param size size of the slice in bytes
  * @param stackIdAndSliceIndex is null if not associated with a stack
+ * @param previewLevel [microscenery.network.SlicePyramid] level if this is a downsampled preview of the slice, see
+ * [microscenery.network.SliceRequester]. 0 for the slice itself. Only set locally, it is not transmitted.
  */
 data class Slice(
     val Id: Int,
@@ -122,7 +142,8 @@ data class Slice(
     val size: Int,
     val stackIdAndSliceIndex: Pair<Int, Int>?,
     val imageMeta: ImageMeta,
-    val data: ByteBuffer?
+    val data: ByteBuffer?,
+    val previewLevel: Int = 0
 ) : BaseServerSignal.DataAvailableSignal() {
     override fun toProtoIntern(): org.withXR.network.v3.DataAvailableSignal {
         val microscopeSignal = org.withXR.network.v3.DataAvailableSignal.newBuilder()
@@ -0,0 +1,88 @@
+package network
+
+import microscenery.network.AppSpecificEnvelope
+import microscenery.signals.*
+import microscenery.signals.BaseServerSignal.Companion.toPoko
+import microscenery.signals.RemoteMicroscopeSignal.Companion.toPoko
+import microscenery.signals.RemoteMicroscopeSignal.Companion.toRemoteMicroscopeSignal
+import org.joml.Vector3f
+import org.junit.jupiter.api.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+/**
+ * Measures garbage produced by encoding and decoding app specific control signals, the nested way and with
+ * [AppSpecificEnvelope].
+ *
+ * Run this at different commits to compare.
+ */
+class AppSpecificEnvelopeBenchmark {
+
+    private val signals = 100_000
+    private val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private fun status(i: Int) =
+        ActualMicroscopeSignal(MicroscopeStatus(ServerState.LIVE, Vector3f(i.toFloat(), 2f, 3f), true))
+
+    @Test
+    fun sameBytes() {
+        val signal = status(1)
+        val nested = signal.toBaseSignal().toProto().toByteArray()
+        val envelope = AppSpecificEnvelope.encode(signal.toProto())
+        assertContentEquals(nested, envelope)
+
+        val data = assertNotNull(AppSpecificEnvelope.unwrap(ByteBuffer.wrap(envelope)))
+        assertEquals(signal, BaseServerSignal.AppSpecific(data).toRemoteMicroscopeSignal())
+
+        // everything else is left to the usual parsing
+        assertNull(AppSpecificEnvelope.unwrap(ByteBuffer.wrap(BaseServerSignal.ServerHello("test", ServerType.MICROSCOPE, "").toProto().toByteArray())))
+    }
+
+    @Test
+    fun nestedVsEnvelope() {
+        // warm up both paths
+        nested(signals / 10)
+        envelope(signals / 10)
+
+        val nested = measure { nested(signals) }
+        val envelope = measure { envelope(signals) }
+
+        println("Nested: ${nested / signals} bytes allocated per signal")
+        println("Envelope: ${envelope / signals} bytes allocated per signal")
+
+        assert(envelope < nested)
+    }
+
+    private fun nested(count: Int): Int {
+        var check = 0
+        for (i in 0 until count) {
+            val bytes = status(i).toBaseSignal().toProto().toByteArray()
+            val received = org.withXR.network.v3.BaseServerSignal.parseFrom(ByteBuffer.wrap(bytes)).toPoko()
+            check += ((received as BaseServerSignal.AppSpecific).toRemoteMicroscopeSignal() as ActualMicroscopeSignal)
+                .signal.hashCode()
+        }
+        return check
+    }
+
+    private fun envelope(count: Int): Int {
+        var check = 0
+        for (i in 0 until count) {
+            val bytes = AppSpecificEnvelope.encode(status(i).toProto())
+            val data = AppSpecificEnvelope.unwrap(ByteBuffer.wrap(bytes))!!
+            check += (org.withXR.network.v3.microscopeApi.RemoteMicroscopeSignal.parseFrom(data).toPoko()
+                    as ActualMicroscopeSignal).signal.hashCode()
+        }
+        return check
+    }
+
+    private fun measure(block: () -> Int): Long {
+        val thread = Thread.currentThread().id
+        val before = threadBean.getThreadAllocatedBytes(thread)
+        block()
+        return threadBean.getThreadAllocatedBytes(thread) - before
+    }
+}
@@ -0,0 +1,137 @@
+package network
+
+import microscenery.network.BiggishDataClient
+import microscenery.network.BiggishDataServer
+import microscenery.network.SliceStorage
+import microscenery.signals.NumericType
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import org.zeromq.ZContext
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertNotNull
+
+/**
+ * Measures throughput and garbage produced by [BiggishDataServer] while serving live sized frames.
+ *
+ * Run this at different commits to compare send paths.
+ */
+class BiggishDataServerBenchmark {
+
+    lateinit var zContext: ZContext
+    lateinit var storage: SliceStorage
+    lateinit var server: BiggishDataServer
+    lateinit var client: BiggishDataClient
+
+    // 2048x2048 16bit
+    private val frameSize = 2048 * 2048 * 2
+    private val frames = 30
+
+    @BeforeEach
+    fun init() {
+        zContext = ZContext()
+        zContext.linger = 0
+        // room for the encoded copies as well
+        storage = SliceStorage(frameSize * (frames + 1) * 2, compression = true)
+        server = BiggishDataServer(4401, "*", storage, zContext)
+        client = BiggishDataClient(zContext, 4401).apply { serverAcceptsExtensions = true }
+        Thread.sleep(500)
+    }
+
+    @AfterEach
+    fun reset() {
+        val t = server.close()
+        client.close().join(2000)
+        t.join(2000)
+        zContext.linger = 0
+        zContext.destroy()
+    }
+
+    @Test
+    fun liveFrames() {
+        for (id in 1..frames) {
+            val buffer = MemoryUtil.memAlloc(frameSize)
+            MemoryUtil.memSet(buffer, id)
+            storage.addSlice(id, buffer)
+        }
+
+        val serverThread = Thread.getAllStackTraces().keys.first { it.name == "Agent: ${BiggishDataServer::class.simpleName}" }
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val gcBeans = ManagementFactory.getGarbageCollectorMXBeans()
+
+        val allocatedBefore = threadBean.getThreadAllocatedBytes(serverThread.id)
+        val gcCountBefore = gcBeans.sumOf { it.collectionCount }
+        val gcTimeBefore = gcBeans.sumOf { it.collectionTime }
+        val start = System.nanoTime()
+
+        for (id in 1..frames) {
+            assert(client.requestSlice(id, frameSize))
+            MemoryUtil.memFree(assertNotNull(client.outputQueue.poll(20000, TimeUnit.MILLISECONDS)).data)
+        }
+
+        val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+        val allocated = threadBean.getThreadAllocatedBytes(serverThread.id) - allocatedBefore
+        val sentBytes = frameSize.toLong() * frames
+
+        println("Sent $sentBytes bytes in ${"%.3f".format(seconds)} s: ${"%.1f".format(sentBytes / seconds / 1024 / 1024)} MB/s")
+        println("Server thread allocated $allocated bytes (${"%.3f".format(allocated.toDouble() / sentBytes)} per sent byte)")
+        println("GC: ${gcBeans.sumOf { it.collectionCount } - gcCountBefore} collections, " +
+                "${gcBeans.sumOf { it.collectionTime } - gcTimeBefore} ms")
+
+        // the payload itself must not be copied to the heap on the server side anymore
+        assert(allocated < sentBytes / 10)
+    }
+
+    @Test
+    fun compressedVsRaw() {
+        val random = Random(1)
+        for (id in 1..frames) {
+            storage.addSlice(id, darkFrame(random), NumericType.INT16)
+        }
+        val rawClient = BiggishDataClient(zContext, 4401, acceptCompression = false)
+        Thread.sleep(500)
+
+        val (rawBytes, rawLatency) = fetchAll(rawClient)
+        val (bytes, latency) = fetchAll(client)
+        rawClient.close().join(2000)
+
+        println("Raw: sent $rawBytes bytes, ${"%.2f".format(rawLatency)} ms per frame")
+        println("Compressed: sent $bytes bytes (${"%.3f".format(bytes.toDouble() / rawBytes)}), " +
+                "${"%.2f".format(latency)} ms per frame")
+
+        assert(bytes < rawBytes / 2)
+    }
+
+    /**
+     * @return bytes sent by the server and mean latency in ms from request to complete slice
+     */
+    private fun fetchAll(client: BiggishDataClient): Pair<Long, Double> {
+        val sentBefore = server.sentBytes
+        var nanos = 0L
+        for (id in 1..frames) {
+            val start = System.nanoTime()
+            assert(client.requestSlice(id, frameSize))
+            MemoryUtil.memFree(assertNotNull(client.outputQueue.poll(20000, TimeUnit.MILLISECONDS)).data)
+            nanos += System.nanoTime() - start
+        }
+        return (server.sentBytes - sentBefore) to nanos / frames / 1_000_000.0
+    }
+
+    /**
+     * Dark background with camera noise and a few bright spots.
+     */
+    private fun darkFrame(random: Random): ByteBuffer {
+        val frame = MemoryUtil.memAlloc(frameSize)
+        val pixels = frame.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+        for (i in 0 until frameSize / 2) {
+            val bright = (i / 2048) % 256 in 100..120 && (i % 2048) % 256 in 100..120
+            pixels.put((if (bright) 20000 + random.nextInt(4000) else 100 + random.nextInt(16)).toShort())
+        }
+        return frame
+    }
+}
@@ -1,14 +1,21 @@
 package network
+import microscenery.MicroscenerySettings
+import microscenery.Settings
+import microscenery.lightSleepOnCondition
 import microscenery.network.BiggishDataClient
 import microscenery.network.BiggishDataServer
 import microscenery.network.CHUNK_SIZE
+import microscenery.network.SliceRoi
 import microscenery.network.SliceStorage
+import microscenery.signals.ImageMeta
+import microscenery.signals.NumericType
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.lwjgl.system.MemoryUtil
 import org.zeromq.ZContext
 import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.concurrent.TimeUnit
 import kotlin.test.assertEquals
 import kotlin.test.assertNotNull
@@ -30,7 +37,8 @@ class BiggishDataTransmissionTest {
         zContext.linger = 0
         this.storage = storage
         server = BiggishDataServer(port, "*", storage, zContext)
-        client = BiggishDataClient(zContext, port)
+        // the server is of this version, there is no hello exchange here
+        client = BiggishDataClient(zContext, port).apply { serverAcceptsExtensions = true }
         Thread.sleep(500)
     }
 
@@ -55,9 +63,10 @@ class BiggishDataTransmissionTest {
         assert(client.requestSlice(1, 100))
         val slice = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
         assertNotNull(slice)
-        slice.chunks.firstEntry().value.forEachIndexed { index, byte ->
-            assertEquals(index.toByte(), byte)
+        for (index in 0 until 100) {
+            assertEquals(index.toByte(), slice.data.get(index))
         }
+        MemoryUtil.memFree(slice.data)
     }
 
     @Test
@@ -83,11 +92,7 @@ class BiggishDataTransmissionTest {
         println("Sending 10 mb took ${(end-start)/1000f} seconds")
 
         // check whole slice
-        val buffer = MemoryUtil.memAlloc(slice.size)
-        slice.chunks.forEach {
-            buffer.put(it.value)
-        }
-        buffer.flip()
+        val buffer = slice.data
 
         for (i in 0 until dataSize) {
             val byte = buffer.get()
@@ -109,11 +114,7 @@ class BiggishDataTransmissionTest {
         assertNotNull(slice)
 
         // check whole slice
-        val buffer = MemoryUtil.memAlloc(slice.size)
-        slice.chunks.forEach {
-            buffer.put(it.value)
-        }
-        buffer.flip()
+        val buffer = slice.data
 
         for (i in 0 until dataSize) {
             val byte = buffer.get()
@@ -121,6 +122,182 @@ class BiggishDataTransmissionTest {
         }
     }
 
+    @Test
+    fun stripedOverTwoServers() {
+        val secondServer = BiggishDataServer(4402, "*", storage, zContext)
+        client.connectDataPorts(listOf(4400, 4402))
+
+        val dataSize = CHUNK_SIZE * 10 + 5
+        storage.addSlice(1, ByteBuffer.wrap(ByteArray(dataSize) { (it + 10).toByte() }))
+        assert(client.requestSlice(1, dataSize))
+        val slice = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(slice)
+
+        for (i in 0 until dataSize) {
+            assertEquals((i + 10).toByte(), slice.data.get(i), "at index $i")
+        }
+        MemoryUtil.memFree(slice.data)
+        secondServer.close().join(2000)
+    }
+
+    @Test
+    fun compressed() {
+        reset()
+        init(4400, SliceStorage(storageSize, compression = true))
+
+        // dark background with some noise, 16 bit
+        val dataSize = 1000 * 1000 * 2
+        val random = java.util.Random(1)
+        val data = MemoryUtil.memAlloc(dataSize)
+        data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().apply { while (hasRemaining()) put((100 + random.nextInt(8)).toShort()) }
+
+        storage.addSlice(1, data, NumericType.INT16)
+        assert(client.requestSlice(1, dataSize))
+        val slice = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(slice)
+
+        for (i in 0 until dataSize) {
+            assertEquals(data.get(i), slice.data.get(i), "at index $i")
+        }
+        assert(server.sentBytes < dataSize / 2)
+        MemoryUtil.memFree(slice.data)
+    }
+
+    @Test
+    fun plainUntilExtensionsAreAdvertised() {
+        reset()
+        init(4400, SliceStorage(storageSize, compression = true))
+        client.serverAcceptsExtensions = false
+
+        val dataSize = 1000 * 1000 * 2
+        val data = MemoryUtil.memAlloc(dataSize)
+        MemoryUtil.memSet(data, 100)
+        storage.addSlice(1, data, NumericType.INT16)
+        assert(client.requestSlice(1, dataSize))
+        val slice = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(slice)
+
+        assertEquals(100, slice.data.get(dataSize - 1).toInt())
+        // requested without extension like an older client, so it is not encoded
+        assertEquals(dataSize.toLong(), server.sentBytes)
+        MemoryUtil.memFree(slice.data)
+    }
+
+    @Test
+    fun liveDelta() {
+        // noise that does not compress on its own, the next frame differs only in a few bytes
+        val dataSize = 1000 * 1000 * 2
+        val random = java.util.Random(1)
+        val first = ByteArray(dataSize).also { random.nextBytes(it) }
+        val second = first.copyOf().also { for (i in 0 until dataSize step 10000) it[i] = (it[i] + 1).toByte() }
+        storage.addSlice(1, ByteBuffer.wrap(first))
+        storage.addSlice(2, ByteBuffer.wrap(second))
+
+        assert(client.requestSlice(1, dataSize, delta = true))
+        val keyframe = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(keyframe)
+        MemoryUtil.memFree(keyframe.data)
+        val sentForKeyframe = server.sentBytes
+
+        assert(client.requestSlice(2, dataSize, delta = true))
+        val slice = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(slice)
+        for (i in 0 until dataSize) {
+            assertEquals(second[i], slice.data.get(i), "at index $i")
+        }
+        assert(server.sentBytes - sentForKeyframe < dataSize / 10)
+        MemoryUtil.memFree(slice.data)
+    }
+
+    @Test
+    fun stackRange() {
+        val sliceSize = CHUNK_SIZE + 5
+        for (index in 0 until 5) {
+            storage.addSlice(10 + index, ByteBuffer.wrap(ByteArray(sliceSize) { (it + index).toByte() }), stackIdAndSliceIndex = 7 to index)
+        }
+
+        val id = assertNotNull(client.requestStack(BiggishDataClient.StackRange(7, 1, 3, sliceSize)))
+        val stack = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(stack)
+        assertEquals(id, stack.id)
+
+        for (slice in 0 until 3) {
+            for (i in 0 until sliceSize) {
+                assertEquals((i + slice + 1).toByte(), stack.data.get(slice * sliceSize + i), "at index $i of slice $slice")
+            }
+        }
+        MemoryUtil.memFree(stack.data)
+    }
+
+    @Test
+    fun stackTransfersAreBounded() {
+        val sliceSize = BiggishDataClient.MAX_STACK_TRANSFER_SIZE / 2 + 1
+        assertNull(client.requestStack(BiggishDataClient.StackRange(7, 0, 2, sliceSize)))
+    }
+
+    @Test
+    fun coarseLevel() {
+        reset()
+        init(4400, SliceStorage(storageSize, pyramid = true))
+
+        val imageSize = org.joml.Vector2i(1000, 500)
+        storage.addSlice(1, ByteBuffer.wrap(ByteArray(1000 * 500) { 40 }), NumericType.INT8, imageSize = imageSize)
+        val levelSize = 250 * 125
+
+        val id = assertNotNull(client.requestSliceLevel(1, 2, levelSize))
+        val level = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(level)
+        assertEquals(id, level.id)
+        assertEquals(1, level.sliceId)
+        for (i in 0 until levelSize) {
+            assertEquals(40.toByte(), level.data.get(i), "at index $i")
+        }
+        MemoryUtil.memFree(level.data)
+    }
+
+    @Test
+    fun region() {
+        // 1000 x 1000 pixel, 8 bit. Each row is filled with its index.
+        val meta = ImageMeta(org.joml.Vector2i(1000, 1000), 1f, NumericType.INT8)
+        storage.addSlice(1, ByteBuffer.wrap(ByteArray(1000 * 1000) { (it / 1000).toByte() }))
+
+        val roi = SliceRoi(100, 200, 600, 500)
+        val id = assertNotNull(client.requestSliceRoi(1, roi, meta))
+        val region = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+        assertNotNull(region)
+        assertEquals(id, region.id)
+        assertEquals(600 * 500, region.size)
+        for (i in 0 until region.size) {
+            assertEquals((200 + i / 600).toByte(), region.data.get(i), "at index $i")
+        }
+        assert(server.sentBytes < 1000 * 1000)
+        MemoryUtil.memFree(region.data)
+    }
+
+    @Test
+    fun regionBehindSliceOffset() {
+        val offset = 64
+        MicroscenerySettings.set(Settings.Network.sliceOffset, offset)
+        try {
+            val meta = ImageMeta(org.joml.Vector2i(1000, 1000), 1f, NumericType.INT8)
+            storage.addSlice(1, ByteBuffer.wrap(ByteArray(offset + 1000 * 1000) {
+                if (it < offset) -1 else ((it - offset) / 1000).toByte()
+            }))
+
+            val roi = SliceRoi(0, 990, 1000, 10)
+            assertNotNull(client.requestSliceRoi(1, roi, meta))
+            val region = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
+            assertNotNull(region)
+            assertEquals(1000 * 10, region.size)
+            for (i in 0 until region.size) {
+                assertEquals((990 + i / 1000).toByte(), region.data.get(i), "at index $i")
+            }
+            MemoryUtil.memFree(region.data)
+        } finally {
+            MicroscenerySettings.set(Settings.Network.sliceOffset, 0)
+        }
+    }
+
     @Test
     fun twice() {
         storage.addSlice(1, ByteBuffer.wrap(ByteArray(100) { it.toByte() }))
@@ -129,14 +306,16 @@ class BiggishDataTransmissionTest {
         assert(client.requestSlice(2, 100))
         val slice = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
         assertNotNull(slice)
-        slice.chunks.firstEntry().value.forEachIndexed { index, byte ->
-            assertEquals(index.toByte(), byte)
+        for (index in 0 until 100) {
+            assertEquals(index.toByte(), slice.data.get(index))
         }
+        MemoryUtil.memFree(slice.data)
         val slice2 = client.outputQueue.poll(10000, TimeUnit.MILLISECONDS)
         assertNotNull(slice2)
-        slice2.chunks.firstEntry().value.forEachIndexed { index, byte ->
-            assertEquals(index.toByte(), byte)
+        for (index in 0 until 100) {
+            assertEquals(index.toByte(), slice2.data.get(index))
         }
+        MemoryUtil.memFree(slice2.data)
     }
 
     @Test
@@ -157,6 +336,19 @@ class BiggishDataTransmissionTest {
         // it seems not to hang
     }
 
+    @Test
+    fun shorterThanRequested() {
+        storage.addSlice(1, ByteBuffer.wrap(ByteArray(100) { it.toByte() }))
+        // the server answers the rest with empty chunks
+        assert(client.requestSlice(1, 200))
+        lightSleepOnCondition(5000) { client.failedSlices == 1L }
+        assertEquals(1L, client.failedSlices)
+        assertNull(client.outputQueue.poll(100, TimeUnit.MILLISECONDS))
+
+        // it does not keep asking
+        simple()
+    }
+
     @Test
     fun short() {
         val size = 2000
@@ -176,9 +368,10 @@ class BiggishDataTransmissionTest {
 
         bBuffer.rewind()
 
-        slice.chunks.firstEntry().value.forEach { byte ->
-            assertEquals(bBuffer.get(), byte)
+        for (index in 0 until size * 2) {
+            assertEquals(bBuffer.get(), slice.data.get(index))
         }
+        MemoryUtil.memFree(slice.data)
 
         MemoryUtil.memFree(bBuffer)
     }
@@ -0,0 +1,92 @@
+package network
+
+import microscenery.network.BiggishDataClient
+import microscenery.network.BiggishDataClient.SliceChunkCollector
+import microscenery.network.ChunkScheduler
+import microscenery.network.SliceRequestPriority
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class ChunkSchedulerTest {
+
+    private val slices = mutableListOf<SliceChunkCollector>()
+
+    private fun slice(
+        id: Int,
+        size: Int,
+        priority: SliceRequestPriority = SliceRequestPriority.NORMAL,
+        group: String? = null
+    ) = SliceChunkCollector(id, size, priority, group).also { slices += it }
+
+    @AfterEach
+    fun free() {
+        slices.forEach { MemoryUtil.memFree(it.data) }
+    }
+
+    @Test
+    fun roundRobin() {
+        val scheduler = ChunkScheduler()
+        scheduler.add(slice(1, 1000))
+        scheduler.add(slice(2, 100))
+
+        val order = generateSequence { scheduler.nextRequest(100) }.map { it.slice.id }.toList()
+
+        assertEquals(listOf(1, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1), order)
+    }
+
+    @Test
+    fun chunksEndAtSliceBorders() {
+        val scheduler = ChunkScheduler()
+        val stack = SliceChunkCollector(-1, 300, stack = BiggishDataClient.StackRange(1, 0, 2, 150)).also { slices += it }
+        scheduler.add(stack)
+
+        val chunks = generateSequence { scheduler.nextRequest(100) }.map { it.offset to it.size }.toList()
+
+        assertEquals(listOf(0 to 100, 100 to 50, 150 to 100, 250 to 50), chunks)
+    }
+
+    @Test
+    fun livePreemptsBackfill() {
+        val scheduler = ChunkScheduler()
+        scheduler.add(slice(1, 1000, SliceRequestPriority.BACKFILL))
+        assertEquals(1, scheduler.nextRequest(100)?.slice?.id)
+
+        scheduler.add(slice(2, 200, SliceRequestPriority.LIVE))
+        assertEquals(2, scheduler.nextRequest(100)?.slice?.id)
+        assertEquals(2, scheduler.nextRequest(100)?.slice?.id)
+        assertEquals(1, scheduler.nextRequest(100)?.slice?.id)
+    }
+
+    @Test
+    fun latestWins() {
+        val scheduler = ChunkScheduler()
+        val first = slice(1, 1000, SliceRequestPriority.LIVE, "live")
+        assertNull(scheduler.add(first))
+        scheduler.nextRequest(100)
+
+        assertSame(first, scheduler.add(slice(2, 1000, SliceRequestPriority.LIVE, "live")))
+        assertNull(scheduler[1])
+        assertEquals(2, scheduler.nextRequest(100)?.slice?.id)
+        assertEquals(100, scheduler.nextRequest(100)?.offset)
+    }
+
+    @Test
+    fun retransmitFirst() {
+        val scheduler = ChunkScheduler()
+        scheduler.add(slice(1, 200))
+        val lost = assertNotNull(scheduler.nextRequest(100))
+        assertEquals(100, scheduler.nextRequest(100)?.offset)
+        assertNull(scheduler.nextRequest(100))
+
+        scheduler.retransmit(lost)
+        val again = assertNotNull(scheduler.nextRequest(100))
+        assertEquals(0, again.offset)
+        assertEquals(1, again.attempt)
+        assertNull(scheduler.nextRequest(100))
+    }
+}
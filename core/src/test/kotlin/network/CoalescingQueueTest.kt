@@ -0,0 +1,50 @@
+package network
+
+import microscenery.network.CoalescingQueue
+import microscenery.signals.ImageMeta
+import microscenery.signals.MicroscopeSignal
+import microscenery.signals.MicroscopeSlice
+import microscenery.signals.MicroscopeStatus
+import microscenery.signals.ServerState
+import microscenery.signals.Slice
+import org.joml.Vector3f
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class CoalescingQueueTest {
+
+    private fun status(x: Float) = MicroscopeStatus(ServerState.LIVE, Vector3f(x), false)
+
+    private fun queue() = CoalescingQueue<MicroscopeSignal> { if (it is MicroscopeStatus) MicroscopeStatus::class else null }
+
+    @Test
+    fun latestStatusWins() {
+        val queue = queue()
+        assertFalse(queue.add(status(1f)))
+        assertTrue(queue.add(status(2f)))
+        assertTrue(queue.add(status(3f)))
+
+        assertEquals(1, queue.size)
+        assertEquals(status(3f), queue.poll())
+        assertNull(queue.poll())
+    }
+
+    @Test
+    fun orderIsKept() {
+        val queue = queue()
+        val slice1 = MicroscopeSlice(Slice(1, 0, Vector3f(), 0, null, ImageMeta.EMPTY, null))
+        val slice2 = MicroscopeSlice(Slice(2, 0, Vector3f(), 0, null, ImageMeta.EMPTY, null))
+        queue.add(status(1f))
+        queue.add(slice1)
+        queue.add(status(2f))
+        queue.add(slice2)
+
+        // the newer status comes after the slice it followed, slices are all kept
+        assertEquals(slice1, queue.poll())
+        assertEquals(status(2f), queue.poll())
+        assertEquals(slice2, queue.poll())
+    }
+}
@@ -1,16 +1,26 @@
 package network
 
 import com.google.protobuf.ByteString
+import microscenery.lightSleepOnCondition
 import microscenery.lightSleepOnNull
 import microscenery.network.ControlSignalsClient
 import microscenery.network.ControlSignalsServer
+import microscenery.network.SignalDispatcher
 import microscenery.signals.BaseClientSignal
 import microscenery.signals.BaseServerSignal
+import microscenery.signals.ServerType
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Test
+import org.zeromq.SocketType
 import org.zeromq.ZContext
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
 import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
 
 class ControlSignalTransmissionTest {
 
@@ -24,6 +34,20 @@ class ControlSignalTransmissionTest {
         lastServerBaseSignal = it
     })
 
+    /**
+     * Like [microscenery.network.RemoteMicroscopeServer] greeting the client
+     */
+    private fun advertiseBatches() {
+        server.sendSignal(
+            BaseServerSignal.ServerHello("test", ServerType.MICROSCOPE, "")
+                .withCapabilities(BaseServerSignal.ServerHello.SIGNAL_BATCHES)
+        )
+        lightSleepOnCondition { client.signalBatches }
+        assertTrue(client.signalBatches)
+        // for the first heartbeat to arrive
+        Thread.sleep(200)
+    }
+
     @AfterEach
     fun reset() {
         val serverThread = server.close()
@@ -72,6 +96,211 @@ class ControlSignalTransmissionTest {
 
         assertEquals(payload, transmitted.data.toStringUtf8())
     }
+    @Test
+    fun commandRoundTripLatency() {
+        lightSleepOnNull { lastClientBaseSignal }
+        assertNotNull(lastClientBaseSignal as? BaseClientSignal.ClientSignOn)
+
+        // echo every command back
+        server.addListener {
+            if (it is BaseClientSignal.AppSpecific) server.sendSignal(BaseServerSignal.AppSpecific(it.data))
+        }
+        val answers = LinkedBlockingQueue<BaseServerSignal>()
+        client.addListener { answers += it }
+
+        fun averageRoundTripMs(roundTrips: Int): Double {
+            val start = System.nanoTime()
+            for (i in 1..roundTrips) {
+                client.sendSignal(BaseClientSignal.AppSpecific(ByteString.copyFrom(byteArrayOf(i.toByte()))))
+                assertNotNull(answers.poll(2, TimeUnit.SECONDS), "no answer to command $i")
+            }
+            return (System.nanoTime() - start) / roundTrips / 1_000_000.0
+        }
+
+        // the former loops slept this long while idle in both directions, on average half of it each
+        val formerIdleSleepMs = 200
+        val roundTrip = averageRoundTripMs(50)
+
+        assertTrue(roundTrip * 4 < formerIdleSleepMs, "round trip took $roundTrip ms")
+    }
+
+    @Test
+    fun batchedSignalsArriveInOrder() {
+        lightSleepOnNull { lastClientBaseSignal }
+        advertiseBatches()
+        val received = LinkedBlockingQueue<Int>()
+        client.addListener { signal ->
+            (signal as? BaseServerSignal.AppSpecific)?.let { received += it.data.toStringUtf8().toInt() }
+        }
+        val messagesBefore = server.sentMessages
+
+        val count = 2000
+        for (i in 1..count) {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFromUtf8(i.toString())))
+        }
+        for (i in 1..count) {
+            assertEquals(i, received.poll(2, TimeUnit.SECONDS))
+        }
+        assert(server.sentMessages - messagesBefore < count)
+    }
+
+    @Test
+    fun singleSignalsUntilBatchesAreAdvertised() {
+        lightSleepOnNull { lastClientBaseSignal }
+        val received = LinkedBlockingQueue<Int>()
+        client.addListener { signal ->
+            (signal as? BaseServerSignal.AppSpecific)?.let { received += it.data.toStringUtf8().toInt() }
+        }
+        val messagesBefore = server.sentMessages
+
+        val count = 500
+        for (i in 1..count) {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFromUtf8(i.toString())))
+        }
+        for (i in 1..count) {
+            assertEquals(i, received.poll(2, TimeUnit.SECONDS))
+        }
+        assertFalse(client.signalBatches)
+        assertEquals(count.toLong(), server.sentMessages - messagesBefore)
+    }
+
+    @Test
+    fun blockedListenerDoesNotDelayOthers() {
+        lightSleepOnNull { lastClientBaseSignal }
+        val release = CountDownLatch(1)
+        client.addListener { release.await() }
+        val received = LinkedBlockingQueue<BaseServerSignal>()
+        client.addListener { received += it }
+
+        val count = 100
+        for (i in 1..count) {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFromUtf8(i.toString())))
+        }
+        for (i in 1..count) {
+            assertNotNull(received.poll(2, TimeUnit.SECONDS), "signal $i did not arrive")
+        }
+        // still waiting for the blocked one
+        assert(client.dispatchStatus.listenerQueueDepths.any { it > 0 })
+
+        release.countDown()
+    }
+
+    @Test
+    fun slowClientDoesNotDelayOthers() {
+        lightSleepOnNull { lastClientBaseSignal }
+        // signs on but never reads
+        val slowClient = ctx.createSocket(SocketType.DEALER)
+        slowClient.receiveBufferSize = 1024
+        slowClient.rcvHWM = 10
+        slowClient.connect("tcp://localhost:11543")
+        slowClient.send(BaseClientSignal.ClientSignOn.toProto().toByteArray())
+        lightSleepOnCondition { server.connectedClients == 2 }
+        assertEquals(2, server.connectedClients)
+
+        var lastReceived = 0
+        client.addListener { signal ->
+            (signal as? BaseServerSignal.AppSpecific)?.let { lastReceived = it.data.asReadOnlyByteBuffer().int }
+        }
+        // large enough to fill the socket buffers of the slow client
+        val count = 5000
+        for (i in 1..count) {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFrom(ByteBuffer.allocate(10_000).putInt(0, i))))
+        }
+        lightSleepOnCondition(5000) { lastReceived == count }
+        assertEquals(count, lastReceived)
+        assert(server.droppedSignals > 0)
+
+        slowClient.linger = 0
+        slowClient.close()
+    }
+
+    @Test
+    fun clientGoneWithQueuedSignals() {
+        lightSleepOnNull { lastClientBaseSignal }
+        // signs on, never reads and disappears while signals are queued for it
+        val goneClient = ctx.createSocket(SocketType.DEALER)
+        goneClient.receiveBufferSize = 1024
+        goneClient.rcvHWM = 10
+        goneClient.connect("tcp://localhost:11543")
+        goneClient.send(BaseClientSignal.ClientSignOn.toProto().toByteArray())
+        lightSleepOnCondition { server.connectedClients == 2 }
+        assertEquals(2, server.connectedClients)
+
+        for (i in 1..2000) {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFrom(ByteBuffer.allocate(10_000).putInt(0, i))))
+        }
+        goneClient.linger = 0
+        goneClient.close()
+        lightSleepOnCondition { server.connectedClients == 1 }
+        assertEquals(1, server.connectedClients)
+
+        // the server is still running
+        lastServerBaseSignal = null
+        server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFromUtf8("still there")))
+        lightSleepOnCondition { (lastServerBaseSignal as? BaseServerSignal.AppSpecific)?.data?.toStringUtf8() == "still there" }
+        assertEquals("still there", (lastServerBaseSignal as? BaseServerSignal.AppSpecific)?.data?.toStringUtf8())
+    }
+
+    @Test
+    fun sharedDispatchPoolIsNotHeldUpByStalledClient() {
+        lightSleepOnNull { lastClientBaseSignal }
+        val pool = SignalDispatcher.newPool("test", threads = 1)
+        val release = CountDownLatch(1)
+        val stalled = ControlSignalsClient(ctx, 11543, "*", listOf { release.await() }, pool)
+        val received = LinkedBlockingQueue<BaseServerSignal>()
+        val other = ControlSignalsClient(ctx, 11543, "*", listOf { received += it }, pool)
+        lightSleepOnCondition { server.connectedClients == 3 }
+
+        // more than the listener queue of the stalled client holds, its decoding waits on the only thread
+        val count = 1500
+        for (i in 1..count) {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFromUtf8(i.toString())))
+        }
+        for (i in 1..count) {
+            assertNotNull(received.poll(2, TimeUnit.SECONDS), "signal $i did not arrive")
+        }
+        assert(stalled.dispatchStatus.stalls > 0)
+
+        release.countDown()
+        stalled.close().join()
+        other.close().join()
+        pool.shutdownNow()
+    }
+
+    @Test
+    fun quietClientIsForgottenOnlyIfItSentHeartbeats() {
+        lightSleepOnNull { lastClientBaseSignal }
+        advertiseBatches()
+        // signs on like clients of older versions, which send no heartbeats
+        val oldClient = ctx.createSocket(SocketType.DEALER)
+        oldClient.connect("tcp://localhost:11543")
+        oldClient.send(BaseClientSignal.ClientSignOn.toProto().toByteArray())
+        // sends one heartbeat and falls silent
+        val silentClient = ctx.createSocket(SocketType.DEALER)
+        silentClient.connect("tcp://localhost:11543")
+        silentClient.send(BaseClientSignal.ClientSignOn.toProto().toByteArray())
+        silentClient.send(ByteArray(0))
+        lightSleepOnCondition { server.connectedClients == 3 }
+        assertEquals(3, server.connectedClients)
+
+        lightSleepOnCondition(ControlSignalsServer.CLIENT_TIMEOUT_MS * 2) { server.connectedClients == 2 }
+        // the heart beating client and the old one are kept
+        Thread.sleep(500)
+        assertEquals(2, server.connectedClients)
+
+        // gone from the socket, noticed on the next send
+        oldClient.linger = 0
+        oldClient.close()
+        lightSleepOnCondition {
+            server.sendSignal(BaseServerSignal.AppSpecific(ByteString.copyFromUtf8("ping")))
+            server.connectedClients == 1
+        }
+        assertEquals(1, server.connectedClients)
+
+        silentClient.linger = 0
+        silentClient.close()
+    }
+
 /*
     @Test
     fun manySignals() {
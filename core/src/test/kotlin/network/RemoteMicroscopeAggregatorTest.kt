@@ -0,0 +1,80 @@
+package network
+
+import microscenery.network.RemoteMicroscopeAggregator
+import microscenery.network.RemoteMicroscopeClient
+import microscenery.network.RemoteMicroscopeServer
+import microscenery.network.SliceStorage
+import microscenery.signals.MicroscopeSlice
+import microscenery.signals.Slice
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.zeromq.ZContext
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class RemoteMicroscopeAggregatorTest {
+
+    private val ports = listOf(4440, 4460)
+    private val sliceSizes = listOf(1000, 2000)
+
+    private val ctx = ZContext()
+    private val microscopes = sliceSizes.map { TestMicroscope(it) }
+    private val servers = microscopes.zip(ports).map { (microscope, port) ->
+        RemoteMicroscopeServer(
+            microscope, ctx, SliceStorage(100_000, spillStore = null), port, "*",
+            announceWithBonjour = false, pushSlices = false, sharedMemory = false
+        )
+    }
+
+    private val added = CopyOnWriteArrayList<RemoteMicroscopeClient>()
+    private val removed = CopyOnWriteArrayList<RemoteMicroscopeClient>()
+    private val aggregator = RemoteMicroscopeAggregator(ctx, discover = false, { added += it }, { removed += it })
+
+    @AfterEach
+    fun teardown() {
+        aggregator.close()
+        servers.forEach { it.shutdown() }
+        Thread.sleep(500)
+        ctx.linger = 0
+        ctx.destroy()
+    }
+
+    private fun RemoteMicroscopeClient.pollSlice(): Slice {
+        val deadline = System.currentTimeMillis() + 5000
+        while (System.currentTimeMillis() < deadline) {
+            // status updates and previews come in between
+            val signal = output.poll(100, TimeUnit.MILLISECONDS)
+            if (signal is MicroscopeSlice && signal.slice.previewLevel == 0) return signal.slice
+        }
+        throw AssertionError("no slice received")
+    }
+
+    @Test
+    fun slicesReachTheirOwnClient() {
+        val clients = ports.map { aggregator.connect("localhost", it) }
+        assertSame(clients[0], aggregator.connect("localhost", ports[0]))
+        assertEquals(clients, added.toList())
+        assertEquals(ports.map { "localhost:$it" }.toSet(), aggregator.microscopes.keys)
+        // signed on
+        Thread.sleep(500)
+
+        microscopes[0].snapSlice()
+        microscopes[1].snapSlice()
+        microscopes[1].snapSlice()
+
+        for ((index, client) in clients.withIndex()) {
+            val microscope = microscopes[index]
+            val got = microscope.captured.map { client.pollSlice() }.sortedBy { it.Id }
+            assertEquals(microscope.captured.toList(), got.map { it.copy(data = null) })
+            got.forEach { assertEquals(it.Id.toByte(), assertNotNull(it.data).get(sliceSizes[index] - 1)) }
+        }
+
+        aggregator.close()
+        assertTrue(aggregator.microscopes.isEmpty())
+        assertEquals(clients.toSet(), removed.toSet())
+    }
+}
@@ -0,0 +1,73 @@
+package network
+
+import microscenery.network.ControlSignalsClient
+import microscenery.network.RemoteMicroscopeRelay
+import microscenery.network.RemoteMicroscopeServer
+import microscenery.network.SliceRequester
+import microscenery.network.SliceStorage
+import microscenery.signals.Slice
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.zeromq.ZContext
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+
+class RemoteMicroscopeRelayTest {
+
+    private val upstreamPort = 4420
+    private val relayPort = 4430
+    private val sliceSize = 1000
+
+    private val ctx = ZContext()
+    private val microscope = TestMicroscope(sliceSize)
+    private val upstream = RemoteMicroscopeServer(
+        microscope, ctx, SliceStorage(100_000, spillStore = null), upstreamPort, "*",
+        announceWithBonjour = false, pushSlices = false, sharedMemory = false
+    )
+    private val relay = RemoteMicroscopeRelay(
+        ctx, "localhost", upstreamPort, relayPort, storage = SliceStorage(100_000, spillStore = null),
+        announceWithBonjour = false
+    )
+
+    @AfterEach
+    fun teardown() {
+        relay.shutdown()
+        upstream.shutdown()
+        Thread.sleep(500)
+        ctx.linger = 0
+        ctx.destroy()
+    }
+
+    @Test
+    fun upstreamTrafficDoesNotGrowWithViewers() {
+        val viewers = (1..3).map {
+            val slices = LinkedBlockingQueue<Slice>()
+            val client = ControlSignalsClient(ctx, relayPort, "localhost")
+            val requester = SliceRequester(
+                client, listOf { if (it is Slice) slices += it }, pushSlices = false, sharedMemory = false,
+                bulkStacks = false, resolutionPyramid = false, liveDelta = false, cache = null
+            )
+            Triple(client, requester, slices)
+        }
+        // signed on
+        Thread.sleep(500)
+
+        val snaps = 4
+        repeat(snaps) { microscope.snapSlice() }
+
+        for ((client, requester, slices) in viewers) {
+            val got = (1..snaps).map { assertNotNull(slices.poll(5, TimeUnit.SECONDS)) }.sortedBy { it.Id }
+            assertEquals(microscope.captured.toList(), got.map { it.copy(data = null) })
+            got.forEach { assertEquals(it.Id.toByte(), assertNotNull(it.data).get(sliceSize - 1)) }
+
+            requester.close().join()
+            client.close().join()
+        }
+
+        // each slice went over the upstream connection once, and once to each viewer
+        assertEquals(snaps * sliceSize.toLong(), upstream.dataSenders.sumOf { it.sentBytes })
+        assertEquals(viewers.size * snaps * sliceSize.toLong(), relay.server.dataSenders.sumOf { it.sentBytes })
+    }
+}
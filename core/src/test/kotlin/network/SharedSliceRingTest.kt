@@ -0,0 +1,67 @@
+package network
+
+import microscenery.network.SharedSliceRing
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import java.nio.ByteBuffer
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class SharedSliceRingTest {
+
+    private val port = 4405
+
+    @AfterEach
+    fun cleanUp() {
+        SharedSliceRing.file(port).delete()
+    }
+
+    private fun slice(id: Int, size: Int) = ByteBuffer.wrap(ByteArray(size) { (it + id).toByte() })
+
+    @Test
+    fun writeAndRead() {
+        val server = assertNotNull(SharedSliceRing.create(port, 10_000))
+        server.write(1, 100L, slice(1, 3000))
+        val client = assertNotNull(SharedSliceRing.open(port))
+
+        val data = assertNotNull(client.read(1, 3000, 100L))
+        for (i in 0 until 3000) {
+            assertEquals((i + 1).toByte(), data.get(i), "at index $i")
+        }
+        MemoryUtil.memFree(data)
+
+        // e.g. a slice of an earlier server run
+        assertNull(client.read(1, 3000, 99L))
+        assertNull(client.read(2, 3000, 100L))
+    }
+
+    @Test
+    fun overwritten() {
+        val server = assertNotNull(SharedSliceRing.create(port, 10_000))
+        val client = assertNotNull(SharedSliceRing.open(port))
+
+        for (id in 1..4) server.write(id, 100L, slice(id, 3000))
+
+        // the fourth slice does not fit behind the third and starts over
+        assertNull(client.read(1, 3000, 100L))
+        val data = assertNotNull(client.read(4, 3000, 100L))
+        assertEquals(4.toByte(), data.get(0))
+        MemoryUtil.memFree(data)
+        MemoryUtil.memFree(assertNotNull(client.read(3, 3000, 100L)))
+    }
+
+    @Test
+    fun closedByServer() {
+        val server = assertNotNull(SharedSliceRing.create(port, 10_000))
+        server.write(1, 100L, slice(1, 3000))
+        val client = assertNotNull(SharedSliceRing.open(port))
+
+        server.close()
+        assertFalse(client.valid)
+        assertNull(client.read(1, 3000, 100L))
+        assertFalse(SharedSliceRing.file(port).exists())
+    }
+}
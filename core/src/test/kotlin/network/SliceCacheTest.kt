@@ -0,0 +1,80 @@
+package network
+
+import microscenery.network.SliceCache
+import microscenery.network.SliceSpillStore
+import microscenery.signals.ImageMeta
+import microscenery.signals.Slice
+import org.joml.Vector3f
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import java.nio.file.Files
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class SliceCacheTest {
+
+    private fun slice(id: Int, created: Long = 1L) = Slice(id, created, Vector3f(), 100, null, ImageMeta.EMPTY, null)
+
+    private fun data(value: Int) = MemoryUtil.memAlloc(100).also { MemoryUtil.memSet(it, value) }
+
+    @Test
+    fun repeatedSliceIsServed() {
+        val cache = SliceCache(1000)
+        val data = data(7)
+        cache.put("a:1", slice(1), data)
+        MemoryUtil.memFree(data)
+
+        val cached = assertNotNull(cache.get("a:1", slice(1)))
+        assertEquals(7, cached.get(99).toInt())
+        MemoryUtil.memFree(cached)
+        assertEquals(1, cache.hits)
+
+        // other server, other run of the server
+        assertNull(cache.get("b:1", slice(1)))
+        assertNull(cache.get("a:1", slice(1, created = 2L)))
+        assertEquals(2, cache.misses)
+        cache.close()
+    }
+
+    @Test
+    fun leastRecentlyUsedIsDropped() {
+        val cache = SliceCache(200)
+        for (id in 1..3) {
+            val data = data(id)
+            cache.put("a:1", slice(id), data)
+            MemoryUtil.memFree(data)
+            if (id == 2) MemoryUtil.memFree(assertNotNull(cache.get("a:1", slice(1))))
+        }
+
+        assertNull(cache.get("a:1", slice(2)))
+        MemoryUtil.memFree(assertNotNull(cache.get("a:1", slice(1))))
+        MemoryUtil.memFree(assertNotNull(cache.get("a:1", slice(3))))
+        cache.close()
+    }
+
+    @Test
+    fun evictedToDisk() {
+        val directory = Files.createTempDirectory("cacheTest").toFile()
+        val diskStore = SliceSpillStore(directory, 1000, segmentSize = 300)
+        val cache = SliceCache(200, diskStore)
+
+        for (id in 1..4) {
+            val data = data(id)
+            cache.put("a:1", slice(id), data)
+            MemoryUtil.memFree(data)
+        }
+        // written in the background
+        Thread.sleep(500)
+        assertEquals(2, diskStore.spilledSlices)
+
+        val cached = assertNotNull(cache.get("a:1", slice(1)))
+        assertEquals(1, cached.get(50).toInt())
+        MemoryUtil.memFree(cached)
+        assertEquals(1, cache.diskHits)
+
+        cache.close()
+        diskStore.close().join(2000)
+        directory.deleteRecursively()
+    }
+}
@@ -0,0 +1,81 @@
+package network
+
+import microscenery.network.CODEC_BLOCK_SIZE
+import microscenery.network.DeltaBitPackCodec
+import microscenery.network.SliceCodecs
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class SliceCodecTest {
+
+    private fun darkFrame(bytes: Int): ByteBuffer {
+        val random = Random(1)
+        val frame = MemoryUtil.memAlloc(bytes)
+        val shorts = frame.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+        var i = 0
+        while (shorts.hasRemaining()) {
+            // a bright spot within dark noise
+            val value = if (i % 1000 in 400..450) 60000 + random.nextInt(500) else 100 + random.nextInt(16)
+            shorts.put(value.toShort())
+            i++
+        }
+        return frame
+    }
+
+    @Test
+    fun roundTrip() {
+        // not a multiple of the block size
+        val size = CODEC_BLOCK_SIZE * 5 + 1000
+        val raw = darkFrame(size)
+        val encoded = assertNotNull(SliceCodecs.encode(DeltaBitPackCodec, raw))
+        assert(encoded.data.capacity() < size / 2)
+
+        val decoded = MemoryUtil.memAlloc(size)
+        SliceCodecs.decode(DeltaBitPackCodec, assertNotNull(encoded.encodedRange(0, size)), decoded)
+
+        for (i in 0 until size) {
+            assertEquals(raw.get(i), decoded.get(i), "at index $i")
+        }
+        MemoryUtil.memFree(decoded)
+        MemoryUtil.memFree(encoded.data)
+        MemoryUtil.memFree(raw)
+    }
+
+    @Test
+    fun blockRange() {
+        val size = CODEC_BLOCK_SIZE * 4 + 2
+        val raw = darkFrame(size)
+        val encoded = assertNotNull(SliceCodecs.encode(DeltaBitPackCodec, raw))
+
+        assertNull(encoded.encodedRange(100, CODEC_BLOCK_SIZE))
+        assertNull(encoded.encodedRange(0, CODEC_BLOCK_SIZE + 100))
+
+        // the last two blocks, the very last one is short
+        val offset = CODEC_BLOCK_SIZE * 3
+        val decoded = MemoryUtil.memAlloc(size - offset)
+        SliceCodecs.decode(DeltaBitPackCodec, assertNotNull(encoded.encodedRange(offset, size - offset)), decoded)
+
+        for (i in 0 until size - offset) {
+            assertEquals(raw.get(offset + i), decoded.get(i), "at index ${offset + i}")
+        }
+        MemoryUtil.memFree(decoded)
+        MemoryUtil.memFree(encoded.data)
+        MemoryUtil.memFree(raw)
+    }
+
+    @Test
+    fun incompressible() {
+        val raw = MemoryUtil.memAlloc(CODEC_BLOCK_SIZE * 2)
+        val random = Random(1)
+        while (raw.hasRemaining()) raw.put(random.nextInt().toByte())
+
+        assertNull(SliceCodecs.encode(DeltaBitPackCodec, raw))
+        MemoryUtil.memFree(raw)
+    }
+}
@@ -0,0 +1,78 @@
+package network
+
+import microscenery.network.SlicePushClient
+import microscenery.network.SlicePushServer
+import microscenery.network.SliceStorage
+import microscenery.signals.ImageMeta
+import microscenery.signals.Slice
+import org.joml.Vector3f
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import org.zeromq.ZContext
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class SlicePushTest {
+
+    lateinit var zContext: ZContext
+    lateinit var server: SlicePushServer
+    lateinit var client: SlicePushClient
+
+    private val received = ArrayBlockingQueue<Slice>(10)
+    private val storage = SliceStorage(10 * 1000)
+
+    @BeforeEach
+    fun init() {
+        zContext = ZContext()
+        zContext.linger = 0
+        server = SlicePushServer(4403, "*", zContext)
+        client = SlicePushClient(zContext, 4403, credits = 1) { received.add(it) }
+        Thread.sleep(500)
+    }
+
+    @AfterEach
+    fun reset() {
+        val t = server.close()
+        client.close().join(2000)
+        t.join(2000)
+        zContext.linger = 0
+        zContext.destroy()
+        received.forEach { MemoryUtil.memFree(it.data) }
+        storage.close()
+    }
+
+    private fun push(id: Int) {
+        val data = MemoryUtil.memAlloc(1000)
+        for (i in 0 until 1000) data.put(i, (i + id).toByte())
+        storage.addSlice(id, data)
+        val slice = Slice(id, System.currentTimeMillis(), Vector3f(), 1000, null, ImageMeta.EMPTY, null)
+        server.push(slice, assertNotNull(storage.acquireSlice(id)))
+    }
+
+    @Test
+    fun creditsLimitPushes() {
+        push(1)
+        val first = assertNotNull(received.poll(5000, TimeUnit.MILLISECONDS))
+        assertEquals(1, first.Id)
+        for (i in 0 until 1000) {
+            assertEquals((i + 1).toByte(), first.data!!.get(i), "at index $i")
+        }
+        MemoryUtil.memFree(first.data)
+
+        // no credit left
+        push(2)
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS))
+
+        client.returnCredit()
+        Thread.sleep(500)
+        push(3)
+        val third = assertNotNull(received.poll(5000, TimeUnit.MILLISECONDS))
+        assertEquals(3, third.Id)
+        MemoryUtil.memFree(third.data)
+    }
+}
@@ -0,0 +1,53 @@
+package network
+
+import microscenery.network.SlicePyramid
+import microscenery.signals.ImageMeta
+import microscenery.signals.NumericType
+import org.joml.Vector2i
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class SlicePyramidTest {
+
+    @Test
+    fun meanOfFour() {
+        val data = ByteBuffer.allocate(4 * 4 * 2).order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0 until 16) data.putShort(i * 2, (i * 4000).toShort())
+
+        val levels = SlicePyramid.build(data, Vector2i(4, 4), NumericType.INT16)
+        assertEquals(SlicePyramid.LEVELS, levels.size)
+
+        val half = levels[0].order(ByteOrder.LITTLE_ENDIAN)
+        assertEquals(2 * 2 * 2, half.capacity())
+        // (0 + 4000 + 16000 + 20000) / 4
+        assertEquals(10000, half.getShort(0).toInt() and 0xFFFF)
+        // values above 32767 stay unsigned
+        assertEquals(50000, half.getShort(6).toInt() and 0xFFFF)
+        assertEquals(30000, levels[1].order(ByteOrder.LITTLE_ENDIAN).getShort(0).toInt() and 0xFFFF)
+        levels.forEach { MemoryUtil.memFree(it) }
+    }
+
+    @Test
+    fun oddSize() {
+        val meta = ImageMeta(Vector2i(5, 3), 1f, NumericType.INT8)
+        val data = ByteBuffer.wrap(ByteArray(15) { 200.toByte() })
+
+        val levels = SlicePyramid.build(data, meta.imageSize, meta.numericType)
+
+        assertEquals(3 * 2, levels[0].capacity())
+        assertEquals(SlicePyramid.levelBytes(meta, 2), levels[1].capacity())
+        assertEquals(Vector2i(2, 1), SlicePyramid.levelMeta(meta, 2).imageSize)
+        assertEquals(4f, SlicePyramid.levelMeta(meta, 2).vertexDiameter)
+        for (i in 0 until levels[0].capacity()) assertEquals(200, levels[0].get(i).toInt() and 0xFF)
+        levels.forEach { MemoryUtil.memFree(it) }
+    }
+
+    @Test
+    fun tooSmall() {
+        assertTrue(SlicePyramid.build(ByteBuffer.allocate(10), Vector2i(4, 4), NumericType.INT8).isEmpty())
+    }
+}
@@ -0,0 +1,62 @@
+package network
+
+import microscenery.network.ControlSignalsClient
+import microscenery.network.RemoteMicroscopeServer
+import microscenery.network.SliceRequester
+import microscenery.network.SliceStorage
+import microscenery.signals.MicroscopeControlSignal
+import microscenery.signals.Slice
+import org.joml.Vector3f
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.zeromq.ZContext
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+
+class SliceRequesterTest {
+
+    private val port = 4410
+    private val ctx = ZContext()
+    private val microscope = TestMicroscope()
+    private val server = RemoteMicroscopeServer(
+        microscope, ctx, SliceStorage(100_000, spillStore = null), port, "*",
+        announceWithBonjour = false, pushSlices = false, sharedMemory = false
+    )
+
+    @AfterEach
+    fun teardown() {
+        server.shutdown()
+        Thread.sleep(500)
+        ctx.linger = 0
+        ctx.destroy()
+    }
+
+    @Test
+    fun stackSlicesKeepTheirMetadata() {
+        val received = listOf(true, false).map { bulkStacks ->
+            val slices = LinkedBlockingQueue<Slice>()
+            val client = ControlSignalsClient(ctx, port, "localhost")
+            val requester = SliceRequester(
+                client, listOf { if (it is Slice) slices += it }, pushSlices = false, sharedMemory = false,
+                bulkStacks = bulkStacks, resolutionPyramid = false, liveDelta = false, cache = null
+            )
+            Triple(client, requester, slices)
+        }
+        // signed on
+        Thread.sleep(500)
+
+        microscope.acquireStack(MicroscopeControlSignal.AcquireStack(Vector3f(), Vector3f(0f, 0f, 3f), 1f))
+
+        // with and without bulk transfers each slice is there with the metadata it was captured with
+        for ((client, requester, slices) in received) {
+            val got = (1..3).map { assertNotNull(slices.poll(5, TimeUnit.SECONDS)) }.sortedBy { it.Id }
+            assertEquals(microscope.captured.toList(), got.map { it.copy(data = null) })
+            got.forEach { assertEquals(it.Id.toByte(), assertNotNull(it.data).get(0)) }
+
+            requester.close().join()
+            client.close().join()
+        }
+    }
+}
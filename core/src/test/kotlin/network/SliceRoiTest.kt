@@ -0,0 +1,52 @@
+package network
+
+import microscenery.network.SliceRoi
+import org.joml.Vector2i
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+
+class SliceRoiTest {
+
+    // 6x4 pixel, 2 bytes each. Both bytes of a pixel are its index.
+    private val image = ByteBuffer.wrap(ByteArray(6 * 4 * 2) { (it / 2).toByte() })
+
+    private fun gather(roi: SliceRoi, offset: Int = 0, length: Int = roi.bytes(2)): ByteArray {
+        val target = ByteArray(length)
+        roi.gather(image, 6, 2, offset, length, ByteBuffer.wrap(target))
+        return target
+    }
+
+    private fun pixels(vararg indices: Int) = indices.flatMap { listOf(it.toByte(), it.toByte()) }.toByteArray()
+
+    @Test
+    fun rows() {
+        assertContentEquals(pixels(7, 8, 9, 13, 14, 15), gather(SliceRoi(1, 1, 3, 2)))
+    }
+
+    @Test
+    fun strided() {
+        val roi = SliceRoi(0, 0, 5, 4, stride = 2)
+        assertEquals(3, roi.outputWidth)
+        assertContentEquals(pixels(0, 2, 4, 12, 14, 16), gather(roi))
+    }
+
+    @Test
+    fun chunkWithinRow() {
+        // starts at the second byte of the second pixel and spans into the next row
+        assertContentEquals(
+            byteArrayOf(8, 9, 9, 13, 13),
+            gather(SliceRoi(1, 1, 3, 2), offset = 3, length = 5)
+        )
+    }
+
+    @Test
+    fun corners() {
+        assertEquals(SliceRoi(1, 2, 3, 1), SliceRoi.fromCorners(Vector2i(4, 2), Vector2i(1, 3)))
+        assertNull(SliceRoi.fromCorners(Vector2i(), Vector2i()))
+        assertFalse(SliceRoi(4, 0, 3, 1).fits(Vector2i(6, 4)))
+    }
+}
@@ -0,0 +1,167 @@
+package network
+
+import microscenery.network.SliceSpillStore
+import microscenery.network.SliceStorage
+import microscenery.signals.NumericType
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import java.nio.file.Files
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class SliceStorageTest {
+
+    @Test
+    fun leastRecentlyUsedIsDropped() {
+        val storage = SliceStorage(300)
+        storage.addSlice(1, MemoryUtil.memAlloc(100))
+        storage.addSlice(2, MemoryUtil.memAlloc(100))
+        storage.addSlice(3, MemoryUtil.memAlloc(100))
+
+        assertNotNull(storage.acquireSlice(1)).close()
+        storage.addSlice(4, MemoryUtil.memAlloc(100))
+
+        assertNotNull(storage.getSlice(1))
+        assertNull(storage.getSlice(2))
+        assertEquals(1, storage.evictions)
+    }
+
+    @Test
+    fun sameMillisecond() {
+        val storage = SliceStorage(1000)
+        // added faster than the clock ticks
+        for (id in 1..100) {
+            storage.addSlice(id, MemoryUtil.memAlloc(100))
+        }
+
+        assertEquals(90, storage.evictions)
+        for (id in 91..100) {
+            assertNotNull(storage.getSlice(id))
+        }
+    }
+
+    @Test
+    fun countsHitsAndMisses() {
+        val storage = SliceStorage(1000)
+        storage.addSlice(1, MemoryUtil.memAlloc(100))
+
+        assertNotNull(storage.acquireSlice(1)).close()
+        assertNull(storage.acquireSlice(2))
+
+        assertEquals(1, storage.hits)
+        assertEquals(1, storage.misses)
+    }
+
+    @Test
+    fun pinnedSliceStaysReadable() {
+        val storage = SliceStorage(100)
+        val data = MemoryUtil.memAlloc(100)
+        MemoryUtil.memSet(data, 7)
+        storage.addSlice(1, data)
+
+        val lease = assertNotNull(storage.acquireSlice(1))
+        storage.addSlice(2, MemoryUtil.memAlloc(100))
+        assertNull(storage.getSlice(1))
+
+        // dropped but still pinned
+        assertEquals(7, lease.data.get(99).toInt())
+        lease.close()
+    }
+
+    @Test
+    fun sameBufferAddedAgain() {
+        val storage = SliceStorage(1000, compression = true)
+        val data = MemoryUtil.memAlloc(200)
+        MemoryUtil.memSet(data, 7)
+        storage.addSlice(1, data, NumericType.INT16)
+
+        val lease = assertNotNull(storage.acquireSlice(1))
+        storage.addSlice(1, data, NumericType.INT16)
+        lease.close()
+
+        // the earlier entry is gone, the buffer is still in use by the new one
+        assertEquals(7, assertNotNull(storage.getSlice(1)).get(199).toInt())
+        assertEquals(0, storage.evictions)
+    }
+
+    @Test
+    fun spillsToDisk() {
+        val directory = Files.createTempDirectory("spillTest").toFile()
+        val spillStore = SliceSpillStore(directory, 1000, segmentSize = 300)
+        val storage = SliceStorage(200, spillStore = spillStore)
+
+        for (id in 1..4) {
+            val data = MemoryUtil.memAlloc(100)
+            MemoryUtil.memSet(data, id)
+            storage.addSlice(id, data)
+        }
+        // written in the background
+        Thread.sleep(500)
+        assertEquals(2, spillStore.spilledSlices)
+
+        val lease = assertNotNull(storage.acquireSlice(1))
+        assertEquals(1, lease.data.get(50).toInt())
+        lease.close()
+        assertEquals(1, storage.diskHits)
+
+        storage.close()
+        spillStore.close().join(2000)
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun spillStoresInOneDirectoryAreSeparate() {
+        val directory = Files.createTempDirectory("spillTest").toFile()
+        val stores = (1..2).map { SliceSpillStore(directory, 1000, segmentSize = 300) }
+        for ((index, store) in stores.withIndex()) {
+            val data = MemoryUtil.memAlloc(100)
+            MemoryUtil.memSet(data, index + 1)
+            store.spill(1, data) { MemoryUtil.memFree(data) }
+        }
+        Thread.sleep(500)
+
+        for ((index, store) in stores.withIndex()) {
+            val (data, release) = assertNotNull(store.acquire(1))
+            assertEquals(index + 1, data.get(50).toInt())
+            release()
+        }
+        assertNotEquals(stores[0].segmentDirectory, stores[1].segmentDirectory)
+
+        stores.forEach { it.close().join(2000) }
+        assertFalse(stores[0].segmentDirectory.exists())
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun pinnedSpillSegmentIsNotReused() {
+        val directory = Files.createTempDirectory("spillTest").toFile()
+        val spillStore = SliceSpillStore(directory, 200, segmentSize = 100)
+        fun spill(id: Int) {
+            val data = MemoryUtil.memAlloc(100)
+            MemoryUtil.memSet(data, id)
+            spillStore.spill(id, data) { MemoryUtil.memFree(data) }
+        }
+        spill(1)
+        spill(2)
+        Thread.sleep(500)
+
+        val (data, release) = assertNotNull(spillStore.acquire(1))
+        // both segments are full, the one of slice 1 is pinned
+        spill(3)
+        Thread.sleep(500)
+        assertEquals(2, spillStore.spilledSlices)
+        assertEquals(1, data.get(50).toInt())
+        release()
+
+        spill(3)
+        Thread.sleep(500)
+        assertEquals(3, spillStore.spilledSlices)
+        assertNull(spillStore.acquire(1))
+
+        spillStore.close().join(2000)
+        directory.deleteRecursively()
+    }
+}
@@ -0,0 +1,64 @@
+package network
+
+import microscenery.hardware.MicroscopeHardwareAgent
+import microscenery.signals.*
+import org.joml.Vector3f
+import org.lwjgl.system.MemoryUtil
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Semaphore
+
+/**
+ * Captures slices of [sliceSize] bytes filled with their id, for tests of the network classes. Stacks have
+ * [stackSlices] slices. Doesn't need to be started.
+ */
+class TestMicroscope(private val sliceSize: Int = 1000, private val stackSlices: Int = 3) : MicroscopeHardwareAgent() {
+    private var nextId = 1
+    private var nextStackId = 1
+
+    /** Captured slices without their data */
+    val captured = CopyOnWriteArrayList<Slice>()
+
+    override fun onLoop() {
+        throw IllegalStateException("this agent does not need to be started")
+    }
+
+    override fun snapSlice() {
+        capture(null, stagePosition)
+    }
+
+    override fun acquireStack(meta: MicroscopeControlSignal.AcquireStack) {
+        val stack = Stack(
+            nextStackId++, meta.startPosition, meta.endPosition, stackSlices, System.currentTimeMillis(), imageMeta
+        )
+        output.put(MicroscopeStack(stack))
+        for (i in 0 until stackSlices) {
+            capture(stack.Id to i, Vector3f(meta.startPosition).lerp(meta.endPosition, i / stackSlices.toFloat()))
+        }
+    }
+
+    private fun capture(stackIdAndSliceIndex: Pair<Int, Int>?, stagePos: Vector3f) {
+        val id = nextId++
+        val data = MemoryUtil.memAlloc(sliceSize)
+        MemoryUtil.memSet(data, id)
+        // creation times differ from slice to slice
+        val slice = Slice(id, System.currentTimeMillis() + id, stagePos, sliceSize, stackIdAndSliceIndex, imageMeta, data)
+        captured += slice.copy(data = null)
+        output.put(MicroscopeSlice(slice))
+    }
+
+    override fun moveStage(target: Vector3f) {
+        status = status.copy(stagePosition = target)
+    }
+
+    override fun goLive() {}
+
+    override fun stop() {}
+
+    override fun shutdown() {}
+
+    override fun ablatePoints(signal: MicroscopeControlSignal.PhotoManipulation) {}
+
+    override fun startAcquisition() {}
+
+    override fun sync(): Semaphore = Semaphore(1)
+}
@@ -0,0 +1,83 @@
+package network
+
+import microscenery.network.ZeroCopySender
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.lwjgl.system.MemoryUtil
+import org.zeromq.SocketType
+import org.zeromq.ZContext
+import org.zeromq.ZMQ
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ZeroCopySenderTest {
+
+    private val ctx = ZContext()
+
+    @AfterEach
+    fun teardown() {
+        ctx.close()
+    }
+
+    @Test
+    fun releasedOnceSent() {
+        val receiver = ctx.createSocket(SocketType.PULL).apply { bind("inproc://zeroCopyTest") }
+        val socket = ctx.createSocket(SocketType.PUSH).apply { connect("inproc://zeroCopyTest") }
+        val sender = ZeroCopySender()
+        val data = MemoryUtil.memAlloc(100)
+        MemoryUtil.memSet(data, 7)
+
+        var released = false
+        assertTrue(sender.send(socket, data, 0) { released = true })
+        assertContentEquals(ByteArray(100) { 7 }, receiver.recv())
+
+        // noticed by the garbage collector
+        for (i in 1..50) {
+            if (released) break
+            System.gc()
+            Thread.sleep(20)
+            sender.reclaim()
+        }
+        assertTrue(released)
+        assertEquals(0, sender.pendingBytes)
+        MemoryUtil.memFree(data)
+    }
+
+    @Test
+    fun releasedRightAwayIfNotSent() {
+        // no peer to send to
+        val socket = ctx.createSocket(SocketType.PUSH)
+        val sender = ZeroCopySender()
+        val data = MemoryUtil.memAlloc(100)
+
+        var released = false
+        assertFalse(sender.send(socket, data, ZMQ.DONTWAIT) { released = true })
+        assertTrue(released)
+        assertEquals(0, sender.pendingBytes)
+        MemoryUtil.memFree(data)
+    }
+
+    @Test
+    fun copiedIfTooMuchIsPending() {
+        val receiver = ctx.createSocket(SocketType.PULL).apply { bind("inproc://zeroCopyLimitTest") }
+        val socket = ctx.createSocket(SocketType.PUSH).apply { connect("inproc://zeroCopyLimitTest") }
+        val sender = ZeroCopySender(maxPendingBytes = 150)
+        val data = MemoryUtil.memAlloc(100)
+        MemoryUtil.memSet(data, 3)
+
+        var firstReleased = false
+        var secondReleased = false
+        assertTrue(sender.send(socket, data, 0) { firstReleased = true })
+        assertTrue(sender.send(socket, data, 0) { secondReleased = true })
+        // the first one is still in the pipe, the second one is a copy
+        assertFalse(firstReleased)
+        assertTrue(secondReleased)
+        assertEquals(100, sender.pendingBytes)
+        assertEquals(100, sender.copiedBytes)
+        assertContentEquals(ByteArray(100) { 3 }, receiver.recv())
+        assertContentEquals(ByteArray(100) { 3 }, receiver.recv())
+        MemoryUtil.memFree(data)
+    }
+}
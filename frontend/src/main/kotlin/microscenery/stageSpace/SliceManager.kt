@@ -36,6 +36,9 @@ class SliceManager(val hardware: MicroscopeHardware, val stageRoot: RichNode, va
     internal val sortingSlicesLock = ReentrantLock()
 
     internal val sortedSlices = ArrayList<SliceRenderNode>()
+    // downsampled previews by slice id, in order of arrival. Removed once the slice or a later one arrives in full
+    // resolution. Only used by the caller of handleSliceSignal.
+    private val previews = LinkedHashMap<Int, SliceRenderNode>()
     internal var stacks = emptyList<StackContainer>()
     internal var selectedStack: StackContainer? = null
 
@@ -118,8 +121,9 @@ class SliceManager(val hardware: MicroscopeHardware, val stageRoot: RichNode, va
     fun handleStackSignal(stackSignal: Stack, hub: Hub) {
         val stack = stackSignal
 
-        val x = hardware.hardwareDimensions().imageSize.x
-        val y = hardware.hardwareDimensions().imageSize.y
+        // differs from the hardware if only a region of the stack is fetched
+        val x = stack.imageMeta.imageSize.x
+        val y = stack.imageMeta.imageSize.y
         val z = stack.slicesCount
         val sliceThickness = (stack.to.z - stack.from.z) / stack.slicesCount
         val buffer = MemoryUtil.memAlloc(
@@ -166,8 +170,8 @@ class SliceManager(val hardware: MicroscopeHardware, val stageRoot: RichNode, va
                 position = (stackSignal.from + stackSignal.to).mul(0.5f)
                 scale = Vector3f(1f, -1f, sliceThickness)
                 scale *= Vector3f(
-                    hardware.hardwareDimensions().vertexDiameter,
-                    hardware.hardwareDimensions().vertexDiameter,
+                    stack.imageMeta.vertexDiameter,
+                    stack.imageMeta.vertexDiameter,
                     1f
                 )
                 scale *= flipVector
@@ -317,18 +321,31 @@ class SliceManager(val hardware: MicroscopeHardware, val stageRoot: RichNode, va
     private fun handleSingleSlice(signal: Slice, layout: MicroscopeLayout) {
         if (signal.data == null) return
         val hwd = hardware.hardwareDimensions()
+        // a downsampled preview, see SliceRequester
+        val isPreview = signal.previewLevel > 0
+        if (isPreview) {
+            previews.remove(signal.Id)?.let { deleteSlice(it) }
+        } else {
+            deletePreviewsUpTo(signal.Id)
+        }
+        // previews and regions are smaller than the image of the hardware
+        val imageMeta = if (isPreview || signal.imageMeta.imageSize != hwd.imageSize) signal.imageMeta else hwd.imageMeta
 
         val node = SliceRenderNode(
             signal.data!!,
-            hwd.imageSize.x,
-            hwd.imageSize.y,
-            hwd.vertexDiameter,
+            imageMeta.imageSize.x,
+            imageMeta.imageSize.y,
+            imageMeta.vertexDiameter,
             hwd.numericType.bytes,
             transferFunctionManager.transferFunction,
             transferFunctionManager.minDisplayRange,
             transferFunctionManager.maxDisplayRange,
             transferFunctionManager.colormap
         )
+        if (isPreview) {
+            previews[signal.Id] = node
+            if (previews.size > MAX_PREVIEWS) previews.remove(previews.keys.first())?.let { deleteSlice(it) }
+        }
         // random offset might be set to avoid z-fighting for close slices
         val randomOffset = MicroscenerySettings.getOrNull<Float>(Settings.StageSpace.RandomSliceOffset)
         node.spatial {
@@ -340,6 +357,24 @@ class SliceManager(val hardware: MicroscopeHardware, val stageRoot: RichNode, va
         scene.findObserver()?.let { sortAndInsertSlices(it,node) }
     }
 
+    /**
+     * Deletes the preview of the slice with [id] and those of earlier slices. Their full slices either arrived or were
+     * dropped by the requester in favour of newer ones, e.g. in live mode.
+     */
+    private fun deletePreviewsUpTo(id: Int) {
+        val iterator = previews.entries.iterator()
+        while (iterator.hasNext()) {
+            val (previewId, node) = iterator.next()
+            if (previewId > id) continue
+            iterator.remove()
+            deleteSlice(node)
+        }
+    }
+
+    companion object {
+        private const val MAX_PREVIEWS = 32
+    }
+
     /**
      * @param currentBuffer points to the buffer of the most recent timepoint. It might be not completly filled
      */
@@ -0,0 +1,25 @@
+package microscenery.scenes.network
+
+import microscenery.network.RemoteMicroscopeAggregator
+import org.zeromq.ZContext
+import kotlin.concurrent.thread
+
+
+/**
+ * Connects to all remote microscopes announced in the local network and prints what they send.
+ */
+class RemoteMicroscopeAggregatorExample {
+    companion object {
+        @JvmStatic
+        fun main(args: Array<String>) {
+            val zContext = ZContext()
+
+            @Suppress("UNUSED_VARIABLE")
+            val aggregator = RemoteMicroscopeAggregator(zContext, onAdded = { microscope ->
+                thread {
+                    while (true) println("${microscope.hashCode()}: ${microscope.output.take()}")
+                }
+            })
+        }
+    }
+}
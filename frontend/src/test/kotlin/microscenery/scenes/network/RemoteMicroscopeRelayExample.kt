@@ -0,0 +1,23 @@
+package microscenery.scenes.network
+
+import microscenery.network.RemoteMicroscopeRelay
+import microscenery.network.SliceStorage
+import org.zeromq.ZContext
+
+
+/**
+ * Relays the microscope at [microscenery.Settings.Network.Host] to viewers connecting to
+ * [microscenery.Settings.Network.RelayBasePort].
+ */
+class RemoteMicroscopeRelayExample {
+    companion object {
+        @JvmStatic
+        fun main(args: Array<String>) {
+            // settings like port can be set in [microscenery.properties]
+            val zContext = ZContext()
+
+            @Suppress("UNUSED_VARIABLE")
+            val relay = RemoteMicroscopeRelay(zContext, storage = SliceStorage(500 * 1024 * 1024))
+        }
+    }
+}